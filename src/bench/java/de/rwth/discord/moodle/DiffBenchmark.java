@@ -0,0 +1,75 @@
+package de.rwth.discord.moodle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link File#diff(File, boolean)} on synthetic file trees where 1% of the
+ * files changed. {@code warm} diffs trees whose digests are already computed, which is
+ * the common case for cached pages, {@code cold} includes computing the digests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int nodes;
+
+    private File oldTree;
+    private File newTree;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        oldTree = Fixtures.tree(nodes, 1);
+        newTree = Fixtures.modify(oldTree, 0.01, 2);
+    }
+
+    @Benchmark
+    public File warm() {
+        return newTree.diff(oldTree, false);
+    }
+
+    @Benchmark
+    public File cold(ColdTrees trees) {
+        return trees.newTree.diff(trees.oldTree, false);
+    }
+
+    @Benchmark
+    public File unchanged() {
+        return oldTree.diff(oldTree.copy(), false);
+    }
+
+
+    /**
+     * Copies of the trees without computed digests for {@link #cold(ColdTrees)}, recreated
+     * before each invocation.
+     */
+    @State(Scope.Thread)
+    public static class ColdTrees {
+
+        private File oldTree;
+        private File newTree;
+
+        @Setup(Level.Invocation)
+        public void setup(DiffBenchmark benchmark) {
+            oldTree = Fixtures.copyWithoutDigest(benchmark.oldTree);
+            newTree = Fixtures.copyWithoutDigest(benchmark.newTree);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package de.rwth.discord.moodle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for moodle serving synthetic resources, tasks, tests and folder pages
+ * for a number of courses, in the layout of the real pages. Courses have the ids
+ * {@code 1} to {@code courses}. Start the bot with the system property {@code moodle.url}
+ * set to {@link #getUrl()} to use it.
+ * <p>The server can simulate latency, courses that change over time, maintenance and
+ * degraded pages. Requests without a {@code MoodleSession} cookie are redirected to the
+ * login page, any session cookie is accepted.</p>
+ * <p>The server also stands in for the shibboleth login: {@code /auth/shibboleth/index.php}
+ * sets a guest session cookie and redirects to a fake identity provider, served on
+ * {@code 127.0.0.1} so that it has a different host than moodle. The identity provider
+ * accepts the configured credentials and posts a {@code SAMLResponse} back to moodle,
+ * which then sets the session cookie of the user.</p>
+ */
+public class FakeMoodle implements AutoCloseable {
+
+    /**
+     * Icon path prefix of the moodle theme, see {@link File#setTypeFromImageUrl(String)}.
+     */
+    private static final String ICON = "/theme/image.php/boost/";
+    /**
+     * Number of sections of each course.
+     */
+    private static final int SECTIONS = 6;
+    /**
+     * Number of resources in each section.
+     */
+    private static final int RESOURCES_PER_SECTION = 5;
+    /**
+     * Number of folders of each course.
+     */
+    private static final int FOLDERS = 2;
+    /**
+     * Path of moodle that starts the shibboleth login.
+     */
+    public static final String SHIBBOLETH_LOGIN = "/auth/shibboleth/index.php";
+    /**
+     * Path of moodle that the identity provider posts the {@code SAMLResponse} to.
+     */
+    private static final String SHIBBOLETH_RESPONSE = "/Shibboleth.sso/SAML2/POST";
+    /**
+     * Path of the login form of the identity provider.
+     */
+    private static final String IDP_LOGIN = "/idp/profile/SAML2/Redirect/SSO";
+
+    /**
+     * The configuration of the server.
+     */
+    public final Config config;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    /**
+     * Number of added files, by course id.
+     */
+    private final AtomicInteger[] versions;
+
+    /**
+     * Total number of requests served.
+     */
+    public final AtomicLong requests = new AtomicLong();
+    /**
+     * Total number of failed responses served.
+     */
+    public final AtomicLong failures = new AtomicLong();
+    /**
+     * Total number of response bytes written, before compression.
+     */
+    public final AtomicLong bytes = new AtomicLong();
+
+
+    /**
+     * Creates and starts a new fake moodle server on a free local port.
+     *
+     * @param config The configuration of the server
+     */
+    public FakeMoodle(Config config) throws IOException {
+        this.config = config;
+        versions = new AtomicInteger[config.courses + 1];
+        for(int i = 0; i < versions.length; i++) versions[i] = new AtomicInteger();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        executor = Executors.newFixedThreadPool(config.threads, r -> {
+            Thread thread = new Thread(r, "Fake moodle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Returns the base url of this server.
+     *
+     * @return The base url, without trailing slash
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // ---------------------------------------------------
+
+    /**
+     * Handles a single request.
+     *
+     * @param exchange The request exchange
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try(exchange) {
+            requests.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if(config.latency > 0 || config.latencyJitter > 0)
+                Thread.sleep(config.latency + (config.latencyJitter > 0 ? random.nextLong(config.latencyJitter) : 0));
+
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+
+            if(path.equals("/login/index.php")) {
+                respond(exchange, 200, page("login-index", "Moodle: Login", "<form action=\"/login/index.php\" method=\"post\"></form>"));
+                return;
+            }
+            if(path.equals(SHIBBOLETH_LOGIN) || path.startsWith("/idp/") || path.equals(SHIBBOLETH_RESPONSE)) {
+                handleLogin(exchange, path);
+                return;
+            }
+            String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+            if(cookie == null || !cookie.contains("MoodleSession=")) {
+                exchange.getResponseHeaders().set("Location", getUrl() + "/login/index.php");
+                exchange.sendResponseHeaders(303, -1);
+                return;
+            }
+
+            if(random.nextDouble() < config.failureRate) {
+                failures.incrementAndGet();
+                respond(exchange, 503, page("maintenance", "Wartungsmodus",
+                        "<div class=\"box py-3 maintenance_message\"><h4>Die Website ist im Wartungsmodus</h4></div>"));
+                return;
+            }
+
+            switch(path) {
+                case "/user/files.php" -> respond(exchange, 200, "<!DOCTYPE html>\n<html><head><title>Meine Dateien</title></head><body id=\"page-user-files\"></body></html>");
+                case "/course/resources.php" -> withCourse(exchange, query, false, this::resourcesPage);
+                case "/mod/assign/index.php" -> withCourse(exchange, query, false, id -> tasksPage(id, "assign", "Aufgabe", "Übungsblatt"));
+                case "/mod/quiz/index.php" -> withCourse(exchange, query, false, id -> tasksPage(id, "quiz", "Test", "Quiz"));
+                case "/mod/folder/view.php" -> withCourse(exchange, query, true, this::folderPage);
+                default -> {
+                    if(path.startsWith("/pluginfile.php/")) {
+                        byte[] data = ("%PDF-1.4\n% " + path + "\n").repeat(64).getBytes(StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+                        exchange.getResponseHeaders().set("ETag", "\"" + Integer.toHexString(path.hashCode()) + "\"");
+                        respond(exchange, 200, data, false);
+                    }
+                    else if(path.startsWith(ICON)) {
+                        exchange.getResponseHeaders().set("Content-Type", "image/svg+xml");
+                        respond(exchange, 200, "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"24\" height=\"24\"/>".getBytes(StandardCharsets.UTF_8), true);
+                    }
+                    else respond(exchange, 404, page("error", "Fehler", "Not found"));
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles a request of the shibboleth login, either to moodle or to the identity
+     * provider.
+     *
+     * @param exchange The request exchange
+     * @param path The requested path
+     */
+    private void handleLogin(HttpExchange exchange, String path) throws IOException {
+        String idp = "http://127.0.0.1:" + server.getAddress().getPort() + IDP_LOGIN;
+        if(path.equals(SHIBBOLETH_LOGIN)) {
+            exchange.getResponseHeaders().add("Set-Cookie", "MoodleSession=guest; Path=/");
+            exchange.getResponseHeaders().set("Location", idp);
+            exchange.sendResponseHeaders(303, -1);
+            return;
+        }
+        Map<String, String> form = exchange.getRequestMethod().equals("POST")
+                ? query(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8))
+                : Map.of();
+        if(path.equals(SHIBBOLETH_RESPONSE)) {
+            if(!form.containsKey("SAMLResponse")) {
+                respond(exchange, 400, page("error", "Fehler", "Missing SAMLResponse"));
+                return;
+            }
+            exchange.getResponseHeaders().add("Set-Cookie", "MoodleSession=" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "; Path=/");
+            exchange.getResponseHeaders().set("Location", getUrl() + "/user/files.php");
+            exchange.sendResponseHeaders(303, -1);
+            return;
+        }
+        if(!path.equals(IDP_LOGIN)) {
+            respond(exchange, 404, page("error", "Fehler", "Not found"));
+            return;
+        }
+
+        boolean accepted = config.username.equals(form.get("j_username")) && config.password.equals(form.get("j_password"));
+        boolean consented = form.containsKey("_shib_idp_consentIds");
+        String content;
+        if((accepted || consented) && config.endlessLogin)
+            // Information release page that never leads back to moodle
+            content = "<form action=\"" + IDP_LOGIN + "\" method=\"post\">"
+                    + "<input type=\"checkbox\" name=\"_shib_idp_consentIds\" value=\"email\" checked=\"checked\"/>"
+                    + "<button type=\"submit\" name=\"_eventId_proceed\">Akzeptieren</button></form>";
+        else if(accepted)
+            content = "<form action=\"" + getUrl() + SHIBBOLETH_RESPONSE + "\" method=\"post\">"
+                    + "<input type=\"hidden\" name=\"RelayState\" value=\"ss:mem:1\"/>"
+                    + "<input type=\"hidden\" name=\"SAMLResponse\" value=\"PHNhbWxwOlJlc3BvbnNlLz4=\"/>"
+                    + "<input type=\"submit\" value=\"Continue\"/></form>";
+        else content = "<form action=\"" + IDP_LOGIN + "\" method=\"post\">"
+                    + "<input type=\"text\" name=\"j_username\" value=\"\"/>"
+                    + "<input type=\"password\" name=\"j_password\"/>"
+                    + "<button type=\"submit\" name=\"_eventId_proceed\">Anmelden</button></form>";
+        respond(exchange, 200, page("idp", "RWTH Single Sign-On", content));
+    }
+
+    /**
+     * Responds with the page generated for the course or folder id in the query. Folder
+     * ids are the course id times 1000 plus the index of the folder.
+     */
+    private void withCourse(HttpExchange exchange, Map<String, String> query, boolean folder, IntFunction<String> page) throws IOException {
+        int id;
+        try {
+            id = Integer.parseInt(query.getOrDefault("id", ""));
+        } catch(NumberFormatException e) {
+            respond(exchange, 400, page("error", "Fehler", "Invalid id"));
+            return;
+        }
+        int course = folder ? id / 1000 : id;
+        if(course < 1 || course > config.courses) {
+            respond(exchange, 404, page("error", "Fehler", "Unknown course"));
+            return;
+        }
+        respond(exchange, 200, page.apply(id));
+    }
+
+    /**
+     * Returns the version of the given course, which is the number of files added since
+     * the server started. Each call adds a file with the configured change rate.
+     *
+     * @param course The course id
+     * @return The current version of the course
+     */
+    private int version(int course) {
+        if(ThreadLocalRandom.current().nextDouble() < config.changeRate)
+            return versions[course].incrementAndGet();
+        return versions[course].get();
+    }
+
+    /**
+     * Returns whether a degraded page without its table should be served.
+     */
+    private boolean degraded() {
+        if(ThreadLocalRandom.current().nextDouble() >= config.degradedRate) return false;
+        failures.incrementAndGet();
+        return true;
+    }
+
+    private String resourcesPage(int course) {
+        String title = "(WS22) Kurs " + course + ": Arbeitsmaterialien";
+        if(degraded()) return page("course-resources", title, "<div class=\"alert\">Es gibt keine Arbeitsmaterialien</div>");
+
+        int version = version(course);
+        Random random = new Random(course);
+        StringBuilder rows = new StringBuilder();
+        int n = 0;
+        for(int s = 0; s < SECTIONS; s++) {
+            if(s != 0) rows.append(divider(3));
+            int count = RESOURCES_PER_SECTION + (s == SECTIONS - 1 ? version : 0);
+            for(int r = 0; r < count; r++, n++) {
+                boolean folder = s == 0 && r < FOLDERS;
+                String mod = folder ? "folder" : "resource";
+                String icon = folder ? "folder/1651234567/icon" : "core/1651234567/f/" + (random.nextBoolean() ? "pdf" : "archive") + "-24";
+                int moduleId = folder ? course * 1000 + r : course * 100000 + n;
+                rows.append("<tr class=\"\"><td class=\"cell c0\" style=\"text-align:center;\">").append(r == 0 ? "Thema " + (s + 1) : "")
+                        .append("</td><td class=\"cell c1\" style=\"text-align:left;\"><a href=\"").append(getUrl()).append("/mod/").append(mod)
+                        .append("/view.php?id=").append(moduleId).append("\"><img src=\"").append(getUrl()).append(ICON).append(icon)
+                        .append("\" class=\"icon\" alt=\"\" role=\"presentation\" /> ").append(folder ? "Ordner " : "Folien ").append(n)
+                        .append("</a></td><td class=\"cell c2 lastcol\" style=\"text-align:left;\"></td></tr>\n");
+            }
+        }
+        return page("course-resources", title, table("Thema", "Name", "Beschreibung") + rows + "</tbody>\n</table>\n");
+    }
+
+    private String tasksPage(int course, String module, String header, String name) {
+        String title = "(WS22) Kurs " + course + ": " + header;
+        if(degraded()) return page("mod-" + module + "-index", title, "");
+
+        StringBuilder rows = new StringBuilder();
+        for(int s = 0; s < SECTIONS; s++) {
+            if(s != 0) rows.append(divider(4));
+            rows.append("<tr class=\"\"><td class=\"cell c0\" style=\"text-align:center;\">Thema ").append(s + 1)
+                    .append("</td><td class=\"cell c1\" style=\"text-align:left;\"><a href=\"view.php?id=").append(course * 100 + s)
+                    .append("\">").append(name).append(' ').append(s + 1)
+                    .append("</a></td><td class=\"cell c2\" style=\"text-align:left;\">Freitag, ").append(10 + s)
+                    .append(". Dezember 2030, 23:59</td><td class=\"cell c3 lastcol\" style=\"text-align:right;\">-</td></tr>\n");
+        }
+        return page("mod-" + module + "-index", title, table("Thema", header, "Fälligkeitsdatum", "Abgabe") + rows + "</tbody>\n</table>\n");
+    }
+
+    private String folderPage(int folder) {
+        StringBuilder tree = new StringBuilder("<div id=\"folder_tree0\" class=\"filemanager\"><ul><li>")
+                .append(folderName("Ordner " + folder)).append("<ul>");
+        for(int i = 0; i < 3; i++) {
+            tree.append("<li>").append(folderName("Woche " + (i + 1))).append("<ul>");
+            for(int j = 0; j < 4; j++) tree.append(folderFile(folder, "Blatt" + i + "_" + j + ".pdf"));
+            tree.append("</ul></li>");
+        }
+        for(int j = 0; j < 5; j++) tree.append(folderFile(folder, "Skript" + j + ".pdf"));
+        tree.append("</ul></li></ul></div>");
+        return page("mod-folder-view", "(WS22) Kurs " + folder / 1000 + ": Ordner", tree.toString());
+    }
+
+    private String folderName(String name) {
+        return "<div class=\"fp-filename-icon\"><span class=\"fp-icon\"><img class=\"icon \" alt=\"\" src=\"" + getUrl() + ICON
+                + "core/1651234567/f/folder-24\" /></span> <span class=\"fp-filename\">" + name + "</span></div>";
+    }
+
+    private String folderFile(int folder, String name) {
+        return "<li><span class=\"fp-filename-icon\"><a href=\"" + getUrl() + "/pluginfile.php/" + folder + "/mod_folder/content/0/" + name
+                + "?forcedownload=1\"><span class=\"fp-icon\"><img class=\"icon \" alt=\"\" src=\"" + getUrl() + ICON
+                + "core/1651234567/f/pdf-24\" /></span><span class=\"fp-filename\">" + name + "</span></a></span></li>";
+    }
+
+    private static String table(String... headers) {
+        StringBuilder html = new StringBuilder("<table class=\"generaltable mod_index\">\n<thead>\n<tr>");
+        for(int i = 0; i < headers.length; i++)
+            html.append("<th class=\"header c").append(i).append("\" scope=\"col\">").append(headers[i]).append("</th>");
+        return html.append("</tr>\n</thead>\n<tbody>").toString();
+    }
+
+    private static String divider(int columns) {
+        return "<tr class=\"tabledivider\"><td colspan=\"" + columns + "\"><div class=\"tabledivider\"></div></td></tr>\n";
+    }
+
+    private static String page(String id, String title, String content) {
+        return "<!DOCTYPE html>\n<html dir=\"ltr\" lang=\"de\" xml:lang=\"de\">\n<head>\n<title>" + title
+                + "</title>\n<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />\n</head>\n<body id=\"page-" + id
+                + "\">\n<div id=\"page-wrapper\"><div role=\"main\"><span id=\"maincontent\"></span>\n" + content
+                + "</div></div>\n</body>\n</html>\n";
+    }
+
+    // ---------------------------------------------------
+
+    private void respond(HttpExchange exchange, int status, String html) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        respond(exchange, status, html.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] data, boolean compressible) throws IOException {
+        bytes.addAndGet(data.length);
+        String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if(compressible && encoding != null && encoding.contains("gzip")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+            try(GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data);
+            }
+            data = out.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        if(exchange.getRequestMethod().equals("HEAD")) {
+            exchange.getResponseHeaders().set("Content-Length", data.length + "");
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, data.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private static Map<String, String> query(String query) {
+        Map<String, String> params = new HashMap<>();
+        if(query == null) return params;
+        for(String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if(eq == -1) params.put(URLDecoder.decode(param, StandardCharsets.UTF_8), "");
+            else params.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+
+    /**
+     * Configuration of a {@link FakeMoodle} server.
+     */
+    public static final class Config {
+
+        /**
+         * Number of courses served.
+         */
+        public int courses = 100;
+        /**
+         * Number of threads handling requests.
+         */
+        public int threads = 16;
+        /**
+         * Fixed latency added to each response, in milliseconds.
+         */
+        public long latency = 50;
+        /**
+         * Maximum random latency added to each response, in milliseconds.
+         */
+        public long latencyJitter = 50;
+        /**
+         * Probability that a request to the resources page of a course adds a new file.
+         */
+        public double changeRate = 0.05;
+        /**
+         * Probability that a request is answered with the maintenance page.
+         */
+        public double failureRate = 0;
+        /**
+         * Probability that a table page is served without its table.
+         */
+        public double degradedRate = 0;
+        /**
+         * The username accepted by the identity provider.
+         */
+        public String username = "ab123456";
+        /**
+         * The password accepted by the identity provider.
+         */
+        public String password = "password";
+        /**
+         * Whether the identity provider keeps asking to release information after the
+         * credentials were accepted, instead of returning to moodle.
+         */
+        public boolean endlessLogin = false;
+    }
+}
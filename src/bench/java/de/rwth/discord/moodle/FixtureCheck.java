@@ -0,0 +1,60 @@
+package de.rwth.discord.moodle;
+
+/**
+ * Sanity checks of the page change detection against the page fixtures. The checks fail
+ * with an {@link AssertionError} if a change of the page content would not be detected.
+ * They are run before the benchmarks, or separately with
+ * {@code mvn -P benchmark compile exec:exec@fixture-check}.
+ */
+public final class FixtureCheck {
+
+    private FixtureCheck() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * A file entry in the folder fixture markup.
+     */
+    private static final String NEW_FILE = "<li><span class=\"fp-filename-icon\"><a href=\"https://moodle.rwth-aachen.de/pluginfile.php/67890/mod_folder/content/0/Neu.pdf?forcedownload=1\">"
+            + "<span class=\"fp-icon\"><img class=\"icon \" alt=\"\" src=\"https://moodle.rwth-aachen.de/theme/image.php/boost_campus_rwth/core/1651234567/f/pdf-24\" /></span>"
+            + "<span class=\"fp-filename\">Neu.pdf</span></a></span></li>";
+
+    public static void main(String[] args) {
+        checkFolder();
+        System.out.println("Fixture checks passed");
+    }
+
+    /**
+     * Checks that adding a file to the root folder of the folder fixture changes the
+     * hashed slice of the page and the parsed file tree, while changes outside of the
+     * file tree don't change the slice.
+     */
+    private static void checkFolder() {
+        String html = Fixtures.page("folder");
+        // End of the root folder's list, followed by the end of the file tree
+        String rootEnd = "</ul></li></ul></div>";
+        int index = html.indexOf(rootEnd);
+        check(index != -1, "folder fixture has no root folder end");
+        String added = html.substring(0, index) + NEW_FILE + html.substring(index);
+
+        String slice = slice(html), addedSlice = slice(added);
+        check(!slice.isEmpty(), "folder slice is empty");
+        check(!slice.equals(addedSlice), "folder slice did not change when adding a file");
+
+        int files = MoodlePageParser.parseFolder("Ordner", "url", html).getFiles().length;
+        int addedFiles = MoodlePageParser.parseFolder("Ordner", "url", added).getFiles().length;
+        check(addedFiles == files + 1, "parsed folder has " + addedFiles + " files instead of " + (files + 1));
+
+        String footer = html.replace("<div id=\"course-footer\"></div>", "<div id=\"course-footer\">Changed</div>");
+        check(!footer.equals(html), "folder fixture has no footer");
+        check(slice.equals(slice(footer)), "folder slice changed when changing the footer");
+    }
+
+    private static String slice(String html) {
+        return PageCache.slice(html, MoodlePageParser.FOLDER_TREE_START, MoodlePageParser.FOLDER_TREE_END);
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) throw new AssertionError(message);
+    }
+}
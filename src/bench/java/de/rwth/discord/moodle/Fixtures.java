@@ -0,0 +1,139 @@
+package de.rwth.discord.moodle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * Utility class providing input data for the benchmarks.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Icon url prefix of the moodle theme, see {@link File#setTypeFromImageUrl(String)}.
+     */
+    private static final String ICON = "https://moodle.rwth-aachen.de/theme/image.php/boost_campus_rwth/core/1651234567/f/";
+
+
+    /**
+     * Loads the html page fixture with the given name from {@code src/bench/resources/fixtures}.
+     *
+     * @param name The name of the fixture, without extension
+     * @return The html of the page
+     */
+    static String page(String name) {
+        try(InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name + ".html")) {
+            if(in == null) throw new IllegalArgumentException("Unknown fixture: " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a synthetic course file tree with the given number of nodes. The tree is
+     * filled breadth first, each folder has 16 children of which 2 are folders. Every
+     * file has a url, some have a description or a deadline. The same seed always
+     * produces the same tree.
+     *
+     * @param nodes The number of nodes in the tree
+     * @param seed The seed for the random contents
+     * @return The created file tree
+     */
+    static File tree(int nodes, long seed) {
+        Random random = new Random(seed);
+        File root = folder("Course");
+        root.description = "12345";
+
+        Deque<File> folders = new ArrayDeque<>();
+        folders.add(root);
+        for(int count = 1; count < nodes; ) {
+            File parent = folders.remove();
+            for(int i = 0; i < 16 && count < nodes; i++, count++) {
+                if(i < 2) {
+                    File folder = folder("Ordner " + count);
+                    parent.add(folder);
+                    folders.add(folder);
+                }
+                else parent.add(file(count, random));
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Returns a copy of the given file tree where approximately the given fraction of
+     * files was renamed, so that they are new files for the diff.
+     *
+     * @param tree The tree to modify
+     * @param fraction The fraction of files to rename
+     * @param seed The seed for the random changes
+     * @return The modified copy
+     */
+    static File modify(File tree, double fraction, long seed) {
+        Random random = new Random(seed);
+        File copy = copyWithoutDigest(tree);
+        for(File file : copy.getFiles())
+            if(!file.type.equals("folder") && random.nextDouble() < fraction)
+                file.name = file.name + " (neu)";
+        return copy;
+    }
+
+    /**
+     * Creates a deep copy of the given file tree whose digests are not computed yet,
+     * unlike {@link File#copy()}, which keeps the computed digests.
+     *
+     * @param tree The tree to copy
+     * @return The copy without digests
+     */
+    static File copyWithoutDigest(File tree) {
+        File copy = new File();
+        copy.name = tree.name;
+        copy.type = tree.type;
+        copy.url = tree.url;
+        copy.description = tree.description;
+        copy.deadline = tree.deadline;
+        for(File child : tree) copy.add(copyWithoutDigest(child));
+        return copy;
+    }
+
+    /**
+     * Creates a folder with the given name.
+     *
+     * @param name The name of the folder
+     * @return The new folder
+     */
+    static File folder(String name) {
+        File folder = new File();
+        folder.name = name;
+        folder.type = "folder";
+        return folder;
+    }
+
+    /**
+     * Creates a file with random properties.
+     *
+     * @param id The id of the file, used for its name and url
+     * @param random The source of randomness
+     * @return The new file
+     */
+    static File file(int id, Random random) {
+        File file = new File();
+        file.name = "Übungsblatt " + id + ".pdf";
+        file.url = "https://moodle.rwth-aachen.de/pluginfile.php/" + id + "/mod_resource/content/1/Blatt" + id + ".pdf?forcedownload=1";
+        file.setTypeFromImageUrl(ICON + "pdf-24");
+        if(random.nextInt(8) == 0)
+            file.description = "Bitte bis zur nächsten Übung bearbeiten.\nHinweise zur Abgabe im Forum.";
+        if(random.nextInt(8) == 0)
+            file.deadline = 1670000000000L + random.nextInt(1000000000);
+        return file;
+    }
+}
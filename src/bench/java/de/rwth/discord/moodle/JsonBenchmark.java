@@ -0,0 +1,57 @@
+package de.rwth.discord.moodle;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.rccookie.json.Json;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks serializing file trees with {@link File#toJson()} and deserializing them
+ * again, as done when storing and loading the snapshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+
+    @Param({ "100", "1000", "10000", "100000" })
+    public int nodes;
+
+    private File tree;
+    private String json;
+
+    @Setup
+    public void setup() {
+        tree = Fixtures.tree(nodes, 1);
+        json = Json.toString(tree.toJson());
+    }
+
+    @Benchmark
+    public Object toJson() {
+        return tree.toJson();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return Json.toString(tree.toJson());
+    }
+
+    @Benchmark
+    public File deserialize() {
+        return Json.parse(json).as(File.class);
+    }
+}
@@ -0,0 +1,137 @@
+package de.rwth.discord.moodle;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.rccookie.json.Json;
+import com.github.rccookie.json.JsonObject;
+
+/**
+ * Measures the polling throughput of the course change listeners against a local
+ * {@link FakeMoodle} server. Each course is checked repeatedly for the configured
+ * duration, and the number of completed checks, their latencies and the traffic are
+ * reported and written to {@code loadtest-result.json}.
+ * <p>The test writes the bot's state files into the working directory, so it should be
+ * run from {@code target}, which is done by
+ * {@code mvn -P benchmark compile exec:exec@load-test -Dload.args="--courses 1000"}.</p>
+ * <p>Options: {@code --courses}, {@code --threads} (of the server), {@code --parallel},
+ * {@code --duration} (seconds), {@code --latency} and {@code --jitter} (milliseconds),
+ * {@code --change-rate}, {@code --failure-rate}, {@code --degraded-rate} and {@code --rate}
+ * (requests per second allowed by the {@link RequestGovernor}).</p>
+ */
+public final class LoadTest {
+
+    private LoadTest() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeMoodle.Config config = new FakeMoodle.Config();
+        int parallelism = 16;
+        long duration = 60;
+        String rate = "1000000";
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch(args[i]) {
+                case "--courses" -> config.courses = Integer.parseInt(value);
+                case "--threads" -> config.threads = Integer.parseInt(value);
+                case "--parallel" -> parallelism = Integer.parseInt(value);
+                case "--duration" -> duration = Long.parseLong(value);
+                case "--latency" -> config.latency = Long.parseLong(value);
+                case "--jitter" -> config.latencyJitter = Long.parseLong(value);
+                case "--change-rate" -> config.changeRate = Double.parseDouble(value);
+                case "--failure-rate" -> config.failureRate = Double.parseDouble(value);
+                case "--degraded-rate" -> config.degradedRate = Double.parseDouble(value);
+                case "--rate" -> rate = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        try(FakeMoodle moodle = new FakeMoodle(config)) {
+            // Must happen before any class of the bot reads the configuration
+            System.setProperty("moodle.url", moodle.getUrl());
+            System.setProperty("moodle.rate", rate);
+            Files.writeString(Path.of("moodlelogin.cookie"), "MoodleSession=loadtest");
+            Files.deleteIfExists(Path.of("loadtest-files.json"));
+
+            SnapshotStore snapshots = new SnapshotStore(Path.of("loadtest-files.json"));
+            DeadlineIndex deadlines = new DeadlineIndex((c, fs) -> { }, TimeUnit.HOURS.toMillis(16));
+            AtomicLong newFiles = new AtomicLong();
+            List<CourseChangeListener> listeners = new ArrayList<>();
+            long setupStart = System.nanoTime();
+            for(int id = 1; id <= config.courses; id++)
+                listeners.add(new CourseChangeListener(id, f -> newFiles.addAndGet(f.getFiles().length), deadlines, snapshots));
+            long setupTime = System.nanoTime() - setupStart;
+
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+            List<Long> latencies = new ArrayList<>();
+            AtomicLong errors = new AtomicLong();
+            long requestsBefore = moodle.requests.get();
+            long start = System.nanoTime();
+            for(int i = 0; i < parallelism; i++) {
+                int offset = i;
+                int step = parallelism;
+                executor.execute(() -> {
+                    for(int c = offset; System.nanoTime() < end; c = (c + step) % listeners.size()) {
+                        long checkStart = System.nanoTime();
+                        try {
+                            listeners.get(c).run();
+                        } catch(Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        long latency = System.nanoTime() - checkStart;
+                        synchronized(latencies) {
+                            latencies.add(latency);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(duration + 600, TimeUnit.SECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            JsonObject result = new JsonObject(
+                    "courses", config.courses,
+                    "parallelism", parallelism,
+                    "latencyMs", config.latency,
+                    "changeRate", config.changeRate,
+                    "failureRate", config.failureRate,
+                    "degradedRate", config.degradedRate,
+                    "setupSeconds", setupTime / 1e9,
+                    "seconds", seconds,
+                    "checks", sorted.length,
+                    "checksPerSecond", sorted.length / seconds,
+                    "requestsPerSecond", (moodle.requests.get() - requestsBefore) / seconds,
+                    "errors", errors.get(),
+                    "newFiles", newFiles.get(),
+                    "serverFailures", moodle.failures.get(),
+                    "p50Ms", percentile(sorted, 0.5),
+                    "p90Ms", percentile(sorted, 0.9),
+                    "p99Ms", percentile(sorted, 0.99),
+                    "maxMs", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6
+            );
+            Json.store(result, new java.io.File("loadtest-result.json"));
+            System.out.println(Json.toString(result, true));
+            System.out.println("Request queue: " + RequestGovernor.getWaitStats());
+            System.out.println("Arguments: " + Arrays.toString(args));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Returns the given percentile of the sorted latencies, in milliseconds.
+     */
+    private static double percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+}
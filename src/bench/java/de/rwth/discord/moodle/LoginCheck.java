@@ -0,0 +1,46 @@
+package de.rwth.discord.moodle;
+
+import com.github.rccookie.util.login.Login;
+
+/**
+ * Sanity checks of the http login against the stand-in identity provider of
+ * {@link FakeMoodle}. The checks fail with an {@link AssertionError} if a login succeeds
+ * that should not, or the other way round. They are run before the benchmarks, or
+ * separately with {@code mvn -P benchmark compile exec:exec@login-check}.
+ */
+public final class LoginCheck {
+
+    private LoginCheck() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeMoodle.Config config = new FakeMoodle.Config();
+        config.latency = config.latencyJitter = 0;
+        try(FakeMoodle moodle = new FakeMoodle(config)) {
+            String loginUrl = moodle.getUrl() + FakeMoodle.SHIBBOLETH_LOGIN;
+
+            String cookie = MoodleLogin.getCookie(new Login(config.username, config.password), loginUrl);
+            check(cookie.startsWith("MoodleSession=") && !cookie.equals("MoodleSession=guest"), "login returned " + cookie);
+
+            checkFails(() -> MoodleLogin.getCookie(new Login(config.username, "wrong"), loginUrl), "login with wrong password");
+
+            config.endlessLogin = true;
+            checkFails(() -> MoodleLogin.getCookie(new Login(config.username, config.password), loginUrl), "login without returning to moodle");
+        }
+        System.out.println("Login checks passed");
+    }
+
+    private static void checkFails(Runnable login, String description) {
+        try {
+            login.run();
+        } catch(IllegalStateException e) {
+            return;
+        }
+        throw new AssertionError(description + " succeeded");
+    }
+
+    private static void check(boolean condition, String message) {
+        if(!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,55 @@
+package de.rwth.discord.moodle;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link File#getMarkdownDescription()}. The file urls are download urls,
+ * which are final urls, so no redirects have to be resolved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkdownBenchmark {
+
+    private File plain;
+    private File full;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        plain = Fixtures.file(1, random);
+        plain.description = null;
+        plain.deadline = null;
+        full = Fixtures.file(2, random);
+        full.description = "Bitte bis zur nächsten Übung bearbeiten.\nHinweise zur Abgabe im Forum.";
+        full.deadline = 1670000000000L;
+        // Resolve the urls once, so that they are cached
+        plain.getMarkdownDescription();
+        full.getMarkdownDescription();
+    }
+
+    @Benchmark
+    public String plain() {
+        return plain.getMarkdownDescription();
+    }
+
+    @Benchmark
+    public String withDescriptionAndDeadline() {
+        return full.getMarkdownDescription();
+    }
+}
@@ -0,0 +1,55 @@
+package de.rwth.discord.moodle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing the moodle pages into file trees, see {@link MoodlePageParser}.
+ * The pages are fixtures in the layout of the moodle resources, tasks and folder pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    private String resources;
+    private String tasks;
+    private String folder;
+
+    @Setup
+    public void setup() {
+        resources = Fixtures.page("resources");
+        tasks = Fixtures.page("tasks");
+        folder = Fixtures.page("folder");
+    }
+
+    @Benchmark
+    public File parseResources() {
+        return MoodlePageParser.parseTable("resources", "https://moodle.rwth-aachen.de/course/resources.php?id=12345",
+                resources, MoodlePageParser::parseResourceRow);
+    }
+
+    @Benchmark
+    public File parseTasks() {
+        return MoodlePageParser.parseTable("tasks", "https://moodle.rwth-aachen.de/mod/assign/index.php?id=12345",
+                tasks, (h,i,j,c) -> MoodlePageParser.parseTaskRow(h, i, j, c, "task"));
+    }
+
+    @Benchmark
+    public File parseFolder() {
+        return MoodlePageParser.parseFolder("Übungen", "https://moodle.rwth-aachen.de/mod/folder/view.php?id=100001", folder);
+    }
+}
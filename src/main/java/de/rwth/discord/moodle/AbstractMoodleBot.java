@@ -1,51 +1,154 @@
 package de.rwth.discord.moodle;
 
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import com.github.rccookie.util.Console;
 
+import org.jetbrains.annotations.NotNull;
+
 /**
  * Generic base class for moodle bots.
  */
 public abstract class AbstractMoodleBot {
 
     /**
-     * Interval between two updates of the same course.
+     * Maximum number of courses checked concurrently.
      */
-    private final int interval;
+    private final int parallelism;
     /**
      * The courses to check for.
      */
     private final int[] courses;
+    /**
+     * The channels to send notifications to.
+     */
+    private final List<NotificationTarget> targets;
+    /**
+     * Stores the last known file tree of each course.
+     */
+    private final SnapshotStore snapshots = new SnapshotStore(Path.of("files.json"));
+    /**
+     * The adaptive polling interval of each course.
+     */
+    private final PollingSchedule schedule;
+    /**
+     * Reminds of upcoming deadlines of all courses.
+     */
+    private final DeadlineIndex deadlines;
+    /**
+     * Stores the notifications that have not been sent yet.
+     */
+    private final NotificationOutbox outbox;
+    /**
+     * The notifications waiting to be sent.
+     */
+    private final NotificationQueue notifications;
+    /**
+     * Time that notifications are delayed to be sent together with other notifications,
+     * in milliseconds.
+     */
+    private final long window;
+    /**
+     * The time of day to send the daily digest of new files at, or {@code null} if new
+     * files should be reported immediately.
+     */
+    private final LocalTime digestTime;
 
     /**
      * Creates a new abstract moodle bot.
      *
-     * @param interval The interval between two updates of the same course, in seconds
+     * @param interval The initial interval between two updates of the same course, in seconds
+     * @param minInterval The minimum interval between two updates of the same course, in seconds
+     * @param maxInterval The maximum interval between two updates of the same course, in seconds
+     * @param parallelism The maximum number of courses to check concurrently
+     * @param reminders The times before a deadline at which to remind of it, in milliseconds
+     * @param queueCapacity The maximum number of notifications waiting to be sent
+     * @param overflow What to do when too many notifications are waiting to be sent
+     * @param window Time that notifications are delayed to be sent together with notifications
+     *               of other courses, in milliseconds
+     * @param digestTime The time of day to send the daily digest of new files at, or
+     *                   {@code null} to report new files immediately
+     * @param targets The channels to send notifications to
      * @param courses The ids of the courses to monitor
      */
-    public AbstractMoodleBot(int interval, int... courses) {
+    public AbstractMoodleBot(int interval, int minInterval, int maxInterval, int parallelism, long[] reminders, int queueCapacity, NotificationQueue.OverflowPolicy overflow, long window, LocalTime digestTime, List<NotificationTarget> targets, int... courses) {
         Console.write("PID", ProcessHandle.current().pid());
-        this.interval = interval;
+        if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        this.parallelism = parallelism;
         this.courses = courses;
+        this.targets = List.copyOf(targets);
+        this.outbox = new NotificationOutbox(Path.of("outbox.log"), targets.get(0).channel);
+        this.schedule = new PollingSchedule(Path.of("intervals.json"), interval, minInterval, maxInterval);
+        this.deadlines = new DeadlineIndex(this::handleDeadlineFiles, reminders);
+        this.window = window;
+        this.digestTime = digestTime;
+        this.notifications = new NotificationQueue(queueCapacity, overflow, this::getDueTime, window, this::deliver);
     }
 
     /**
      * Starts the bot. May be called at the end of the constructor.
+     * <p>The checks of the different courses are started staggered over their interval
+     * and run on a pool of {@link #parallelism} threads, so a slow course does not
+     * delay the others. Checks that are due while all threads are busy are executed
+     * in the order they became due. The next check of a course is scheduled when the
+     * previous one finished, using the interval from the {@link PollingSchedule}.</p>
+     * <p>Notifications that were not sent before the last shutdown are sent again.</p>
      */
     protected void start() {
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(@NotNull Runnable r) {
+                return new Thread(r, "Course check " + count.incrementAndGet());
+            }
+        });
+
         for(int i=0; i<courses.length; i++) {
-            CourseChangeListener listener = new CourseChangeListener(courses[i], this::handleNewFiles, this::handleDeadlineFiles);
-            executor.scheduleAtFixedRate(() -> {
-                beforeCheck(listener.course);
-                listener.run();
-                afterCheck(listener.course);
-            }, (interval / courses.length) * (long) i, interval, TimeUnit.SECONDS);
+            CourseChangeListener listener = new CourseChangeListener(courses[i], this::handleNewFiles, deadlines, snapshots);
+            long delay = schedule.getInterval(listener.course.id) * 1000L * i / courses.length;
+            scheduler.schedule(() -> workers.execute(() -> check(listener, scheduler, workers)), delay, TimeUnit.MILLISECONDS);
+        }
+        // Notifications for the digest wait in the outbox, not in the bounded queue
+        outbox.start(notifications::add, n -> getDueTime(n) - window);
+    }
+
+    /**
+     * Checks the given course and schedules its next check.
+     *
+     * @param listener The listener of the course to check
+     * @param scheduler The scheduler to schedule the next check with
+     * @param workers The executor to run the next check on
+     */
+    private void check(CourseChangeListener listener, ScheduledExecutorService scheduler, ExecutorService workers) {
+        int interval = schedule.getInterval(listener.course.id);
+        try {
+            beforeCheck(listener.course);
+            listener.run();
+            afterCheck(listener.course);
+            interval = schedule.update(listener.course.id, listener.foundNewFiles(), deadlines.getNextDeadline(listener.course.id));
+        } catch(Exception e) {
+            Console.error("Exception while checking", listener.course.name);
+            Console.error(e);
+        } finally {
+            scheduler.schedule(() -> workers.execute(() -> check(listener, scheduler, workers)), interval, TimeUnit.SECONDS);
         }
     }
 
@@ -73,7 +176,9 @@ public abstract class AbstractMoodleBot {
      * @param files The new files found, as file tree
      */
     protected void handleNewFiles(File files) {
-        handleNewFiles(new Course(files.name, Integer.parseInt(files.description)), List.of(files.getFiles()));
+        Course course = new Course(files.name, Integer.parseInt(files.description));
+        // The same new files result in the same diff, if the check is repeated
+        handleNewFiles(course, List.of(files.getFiles()), "files/" + course.id + "/" + files.digest());
     }
 
     /**
@@ -81,15 +186,16 @@ public abstract class AbstractMoodleBot {
      *
      * @param course The course that the files were found in
      * @param files The found files (not as file tree, just the files themselves)
+     * @param key Identifies the event, notifications with the same key are only sent once
      */
-    protected void handleNewFiles(Course course, Collection<File> files) {
+    protected void handleNewFiles(Course course, Collection<File> files, String key) {
         Console.splitCustom("debug", "New files");
         files.stream().map(f->f+"\n").forEach(Console::debug);
-        handleFiles(course, files, "Neue Datei wurde hochgeladen:", "Neue Dateien wurden hochgeladen:", true);
+        handleFiles(key, course, files, "Neue Datei wurde hochgeladen:", "Neue Dateien wurden hochgeladen:", true, false);
     }
 
     /**
-     * Called when files close to deadline are found.
+     * Called when files reach one of the configured reminder times before their deadline.
      *
      * @param course The course that the files were found in
      * @param files The found files (not as file tree, just the files themselves)
@@ -97,17 +203,85 @@ public abstract class AbstractMoodleBot {
     protected void handleDeadlineFiles(Course course, Collection<File> files) {
         Console.splitCustom("debug", "Deadline files");
         files.stream().map(f->f+"\n").forEach(Console::debug);
-        handleFiles(course, files, "Abgabe endet bald:", "Abgaben enden bald:", false);
+        handleFiles("deadline/" + course.id + "/" + UUID.randomUUID(), course, files, "Abgabe endet bald:", "Abgaben enden bald:", false, true);
     }
 
     /**
-     * Called when files that should be reported are found.
+     * Called when files that should be reported are found. Stores a notification for
+     * the files in the outbox for each target that receives notifications of the course,
+     * from where they will be sent asynchronously.
      *
+     * @param key Identifies the event, notifications with the same key are only sent once
      * @param course The course that the files were found in
      * @param files The found files (not as file tree, just the files themselves)
      * @param descSing The description of the event, in singular
      * @param descPlural The description of the event, in plural
      * @param uploadFiles Whether the files should be attached if possible
+     * @param reminder Whether the files are reported because of their deadline
+     */
+    protected void handleFiles(String key, Course course, Collection<File> files, String descSing, String descPlural, boolean uploadFiles, boolean reminder) {
+        boolean any = false;
+        for(NotificationTarget target : targets) {
+            if(!target.accepts(course.id)) continue;
+            outbox.add(new Notification(Notification.key(key, target.channel), target.channel, course, files, descSing, descPlural, uploadFiles, reminder));
+            any = true;
+        }
+        if(!any) Console.debug("No notification target for", course.name);
+    }
+
+    /**
+     * Returns the time from which on the given notification should be sent. Reminders, and
+     * new files if there is no daily digest, are sent after the coalescing window, other
+     * notifications with the next digest after they were created.
+     *
+     * @param notification The notification to get the due time for
+     * @return The time from which on the notification should be sent
+     */
+    private long getDueTime(Notification notification) {
+        if(digestTime == null || notification.reminder)
+            return notification.created + window;
+        ZoneId zone = ZoneId.systemDefault();
+        ZonedDateTime created = ZonedDateTime.ofInstant(Instant.ofEpochMilli(notification.created), zone);
+        ZonedDateTime digest = ZonedDateTime.of(created.toLocalDate(), digestTime, zone);
+        if(!digest.isAfter(created)) digest = ZonedDateTime.of(created.toLocalDate().plusDays(1), digestTime, zone);
+        return digest.toInstant().toEpochMilli();
+    }
+
+    /**
+     * Sends the given notifications, except those that were sent already, and reports
+     * the outcome of each notification to the outbox once the message containing it was
+     * sent or failed.
+     *
+     * @param notifications The notifications to send
+     * @return A future that completes once the notifications were sent
+     */
+    private CompletableFuture<?> deliver(List<Notification> notifications) {
+        // May have been handed over multiple times, e.g. after the lease expired, and
+        // may still be sending after the queue stopped waiting for it
+        List<Notification> pending = notifications.stream().filter(n -> outbox.beginSending(n.key)).toList();
+        if(pending.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        Set<Notification> completed = ConcurrentHashMap.newKeySet();
+        BiConsumer<Notification, Throwable> complete = (n,e) -> {
+            if(completed.add(n)) outbox.complete(n, e);
+        };
+        try {
+            return send(pending, complete).whenComplete(($,e) -> pending.forEach(n -> complete.accept(n, e)));
+        } catch(RuntimeException e) {
+            pending.forEach(n -> complete.accept(n, e));
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the given notifications together. Called on the notification sender thread,
+     * one batch of at most 10 notifications for the same target at a time.
+     *
+     * @param notifications The notifications to send
+     * @param sent Should be called for each notification once the message containing it
+     *             was sent, or failed to send with the given exception. Notifications
+     *             not reported are completed with the outcome of the returned future
+     * @return A future that completes once the notifications and their attachments were sent
      */
-    protected abstract void handleFiles(Course course, Collection<File> files, String descSing, String descPlural, boolean uploadFiles);
+    protected abstract CompletableFuture<?> send(List<Notification> notifications, BiConsumer<Notification, Throwable> sent);
 }
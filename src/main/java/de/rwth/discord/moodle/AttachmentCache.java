@@ -0,0 +1,313 @@
+package de.rwth.discord.moodle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.github.rccookie.json.Json;
+import com.github.rccookie.json.JsonElement;
+import com.github.rccookie.json.JsonObject;
+import com.github.rccookie.util.Console;
+
+/**
+ * Content addressed on-disk cache for downloaded attachments. Documents are stored by
+ * the SHA-256 hash of their content, so identical files from different urls are only
+ * stored once. Additionally, the final url of each file is mapped to the hash of its
+ * content, together with the ETag and size sent by the server, so that unchanged files
+ * don't need to be downloaded again. If the total size of the cache exceeds the size
+ * limit, the least recently used documents are removed.
+ */
+public class AttachmentCache {
+
+    /**
+     * The name of the index file in the cache directory.
+     */
+    private static final String INDEX = "index.json";
+
+    /**
+     * The directory to store the documents in.
+     */
+    private final Path directory;
+    /**
+     * The maximum total size of all cached documents, in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * The cached documents, by hash, in access order.
+     */
+    private final Map<String, Blob> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The cached urls, by final url.
+     */
+    private final Map<String, UrlEntry> urls = new HashMap<>();
+    /**
+     * The total size of all cached documents, in bytes.
+     */
+    private long totalSize = 0;
+
+
+    /**
+     * Creates a new attachment cache in the given directory, loading the documents
+     * already present.
+     *
+     * @param directory The directory to store the documents in
+     * @param maxSize The maximum total size of all cached documents, in bytes
+     */
+    public AttachmentCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        try {
+            Files.createDirectories(directory);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        load();
+    }
+
+    /**
+     * Returns the document that the given file points to. If the document is cached and
+     * the server reports the same ETag or size for it, the cached document is returned,
+     * otherwise it is downloaded and added to the cache. The returned document must be
+     * closed after use, it will not be evicted from the cache until then.
+     *
+     * @param file The file to load
+     * @param maxDocumentSize The maximum size of the document, in bytes
+     * @return The document, or {@code null} if it is larger than the maximum size
+     */
+    public Document load(File file, long maxDocumentSize) {
+        String url = file.getFinalUrl();
+
+        UrlEntry entry;
+        synchronized(this) {
+            entry = urls.get(url);
+        }
+        if(entry != null && entry.size <= maxDocumentSize && isCurrent(url, entry)) {
+            synchronized(this) {
+                Document document = acquire(entry.hash, file.getFileName(), entry.eTag);
+                if(document != null) {
+                    Console.mapDebug("Cached attachment", file.name);
+                    return document;
+                }
+            }
+        }
+
+        Document download = file.loadDocument(maxDocumentSize);
+        if(download == null) return null;
+        synchronized(this) {
+            try {
+                Path path = directory.resolve(download.hash);
+                if(!blobs.containsKey(download.hash) || !Files.exists(path)) {
+                    Files.move(download.path, path, StandardCopyOption.REPLACE_EXISTING);
+                    Blob old = blobs.put(download.hash, new Blob(download.size));
+                    if(old != null) totalSize -= old.size;
+                    totalSize += download.size;
+                }
+                else Console.mapDebug("Duplicate attachment", file.name);
+            } catch(IOException e) {
+                Console.warn("Failed to cache", file.name + ":", e);
+                return download;
+            }
+            download.close();
+
+            urls.put(url, new UrlEntry(download.hash, download.eTag, download.size));
+            Document document = acquire(download.hash, file.getFileName(), download.eTag);
+            evict();
+            store();
+            return document;
+        }
+    }
+
+    /**
+     * Checks whether the cached entry for the given url is still up-to-date, by comparing
+     * the ETag, or if there is none, the size reported by the server.
+     *
+     * @param url The url to check
+     * @param entry The cached entry for that url
+     * @return Whether the cached entry is still valid
+     */
+    private static boolean isCurrent(String url, UrlEntry entry) {
+        try {
+            HttpResponse<Void> response = MoodleClient.send(MoodleClient.newRequest(url)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()),
+                    HttpResponse.BodyHandlers.discarding());
+            if(response.statusCode() != 200) return false;
+            String eTag = response.headers().firstValue("ETag").orElse(null);
+            if(entry.eTag != null || eTag != null)
+                return eTag != null && eTag.equals(entry.eTag);
+            return response.headers().firstValueAsLong("Content-Length").orElse(-1) == entry.size;
+        } catch(Exception e) {
+            Console.warn("Failed to validate cached attachment:", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a document for the cached content with the given hash, and pins it until
+     * the document is closed. Must be called while holding the lock.
+     *
+     * @param hash The hash of the content
+     * @param name The filename for the document
+     * @param eTag The ETag of the document, if any
+     * @return The document, or {@code null} if the content is not cached
+     */
+    private Document acquire(String hash, String name, String eTag) {
+        Blob blob = blobs.get(hash);
+        Path path = directory.resolve(hash);
+        if(blob == null || !Files.exists(path)) return null;
+        blob.pins++;
+        return new Document(name, path, blob.size, eTag, hash, () -> release(hash));
+    }
+
+    /**
+     * Releases a pin on the cached content with the given hash.
+     *
+     * @param hash The hash of the content
+     */
+    private synchronized void release(String hash) {
+        Blob blob = blobs.get(hash);
+        if(blob != null && blob.pins > 0) blob.pins--;
+        evict();
+    }
+
+    /**
+     * Removes the least recently used documents that are not in use until the total size is
+     * within the size limit. Must be called while holding the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Blob>> it = blobs.entrySet().iterator();
+        while(totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Blob> e = it.next();
+            if(e.getValue().pins > 0) continue;
+            try {
+                Files.deleteIfExists(directory.resolve(e.getKey()));
+            } catch(IOException ex) {
+                Console.warn("Failed to delete cached attachment:", ex);
+                continue;
+            }
+            it.remove();
+            totalSize -= e.getValue().size;
+            urls.values().removeIf(u -> u.hash.equals(e.getKey()));
+        }
+    }
+
+    /**
+     * Loads the index from disk and removes all files from the cache directory that are
+     * not part of the index.
+     */
+    private synchronized void load() {
+        Path index = directory.resolve(INDEX);
+        if(Files.exists(index)) {
+            try {
+                JsonObject json = Json.load(index.toString()).asObject();
+                for(String hash : json.getElement("blobs").as(String[].class)) {
+                    Path path = directory.resolve(hash);
+                    if(!Files.exists(path)) continue;
+                    long size = Files.size(path);
+                    blobs.put(hash, new Blob(size));
+                    totalSize += size;
+                }
+                JsonObject urlsJson = json.getObject("urls");
+                for(String url : urlsJson.keySet()) {
+                    JsonElement entry = urlsJson.getElement(url);
+                    String hash = entry.get("hash").asString();
+                    if(!blobs.containsKey(hash)) continue;
+                    urls.put(url, new UrlEntry(hash,
+                            entry.get("eTag").toOptional().map(JsonElement::asString).orElse(null),
+                            entry.get("size").asLong()));
+                }
+            } catch(Exception e) {
+                Console.warn("Failed to load attachment cache index:", e);
+            }
+        }
+        try(Stream<Path> files = Files.list(directory)) {
+            files.filter(f -> !f.getFileName().toString().equals(INDEX) && !blobs.containsKey(f.getFileName().toString()))
+                    .forEach(f -> {
+                        try {
+                            Files.deleteIfExists(f);
+                        } catch(IOException e) {
+                            Console.warn("Failed to delete", f + ":", e);
+                        }
+                    });
+        } catch(IOException e) {
+            Console.warn("Failed to clean up attachment cache:", e);
+        }
+        evict();
+    }
+
+    /**
+     * Writes the index to disk. Must be called while holding the lock.
+     */
+    private void store() {
+        JsonObject urlsJson = new JsonObject();
+        urls.forEach((url, entry) -> {
+            JsonObject json = new JsonObject("hash", entry.hash, "size", entry.size);
+            if(entry.eTag != null) json.put("eTag", entry.eTag);
+            urlsJson.put(url, json);
+        });
+        JsonObject json = new JsonObject("blobs", blobs.keySet().toArray(new String[0]), "urls", urlsJson);
+
+        Path index = directory.resolve(INDEX);
+        Path temp = directory.resolve(INDEX + ".tmp");
+        try {
+            Json.store(json, temp.toFile());
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(Exception e) {
+            Console.warn("Failed to store attachment cache index:", e);
+        }
+    }
+
+
+    /**
+     * A cached document content.
+     */
+    private static final class Blob {
+
+        /**
+         * The size of the content, in bytes.
+         */
+        final long size;
+        /**
+         * The number of open documents using the content.
+         */
+        int pins = 0;
+
+        Blob(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * A cached url.
+     */
+    private static final class UrlEntry {
+
+        /**
+         * The hash of the content that the url pointed to.
+         */
+        final String hash;
+        /**
+         * The ETag sent by the server, if any.
+         */
+        final String eTag;
+        /**
+         * The size of the content, in bytes.
+         */
+        final long size;
+
+        UrlEntry(String hash, String eTag, long size) {
+            this.hash = hash;
+            this.eTag = eTag;
+            this.size = size;
+        }
+    }
+}
@@ -9,6 +9,6 @@ public final class Course {
     public Course(String name, int id) {
         this.name = name;
         this.id = id;
-        this.url = "https://moodle.rwth-aachen.de/course/view.php?id="+id;
+        this.url = MoodleClient.BASE_URL + "/course/view.php?id="+id;
     }
 }
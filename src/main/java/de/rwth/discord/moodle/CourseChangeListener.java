@@ -1,23 +1,19 @@
 package de.rwth.discord.moodle;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.function.BiConsumer;
-import java.util.function.BiFunction;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
-import com.github.rccookie.json.Json;
-import com.github.rccookie.json.JsonObject;
 import com.github.rccookie.util.Console;
-import com.github.rccookie.util.http.HTTPRequest;
-import com.github.rccookie.util.http.HTTPResponse;
-import com.github.rccookie.xml.Node;
-import com.github.rccookie.xml.XML;
-import com.github.rccookie.xml.XMLParser;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -26,6 +22,20 @@ import org.jetbrains.annotations.NotNull;
  */
 public class CourseChangeListener implements Runnable {
 
+    /**
+     * Executor used to fetch the pages of a course concurrently.
+     */
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Page fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Maximum number of folders of a single course fetched concurrently.
+     */
+    private static final int MAX_CONCURRENT_FOLDERS = 4;
+
     /**
      * The course that this listener checks.
      */
@@ -36,20 +46,51 @@ public class CourseChangeListener implements Runnable {
      */
     private final Consumer<File> diffListener;
     /**
-     * Listener for files that are close to their deadline.
+     * Schedules the reminders for the deadlines of the course.
+     */
+    private final DeadlineIndex deadlines;
+    /**
+     * Stores the last known file tree of the course.
+     */
+    private final SnapshotStore snapshots;
+    /**
+     * Rejects file trees fetched while moodle is degraded.
+     */
+    private final SnapshotGuard guard = new SnapshotGuard();
+
+
+    /**
+     * Conditionally fetches the table pages of this course and caches their parsed
+     * file trees.
+     */
+    private final PageCache pages = new PageCache();
+    /**
+     * Conditionally fetches the folder pages of this course and caches their parsed
+     * file trees, by folder url.
      */
-    private final BiConsumer<Course, Collection<File>> deadlineListener;
+    private final PageCache folders = new PageCache();
 
 
     /**
      * Accumulates the received bytes of the current iteration.
      */
-    private int traffic = 0;
+    private final AtomicInteger traffic = new AtomicInteger();
+
+    /**
+     * Whether any page was modified since the last iteration.
+     */
+    private final AtomicBoolean modified = new AtomicBoolean();
 
     /**
-     * The timestamp to use for the current iteration.
+     * Whether the last iteration found new files.
+     */
+    private volatile boolean foundNewFiles = false;
+    /**
+     * Whether the diff listener failed in the last iteration, or the snapshot guard
+     * rejected modified pages, so the diff has to be computed even if no page was
+     * modified.
      */
-    private long currentTime;
+    private boolean diffPending = false;
 
 
     /**
@@ -57,11 +98,13 @@ public class CourseChangeListener implements Runnable {
      *
      * @param course The id of the course to check
      * @param diffListener The callback to use when new files are found
-     * @param deadlineListener The callback to use when files are close to their deadline
+     * @param deadlines The index to schedule the deadline reminders of the course in
+     * @param snapshots The store for the last known file tree of the course
      */
-    public CourseChangeListener(int course, Consumer<File> diffListener, BiConsumer<Course, Collection<File>> deadlineListener) {
+    public CourseChangeListener(int course, Consumer<File> diffListener, DeadlineIndex deadlines, SnapshotStore snapshots) {
         this.diffListener = diffListener;
-        this.deadlineListener = deadlineListener;
+        this.deadlines = deadlines;
+        this.snapshots = snapshots;
         this.course = new Course(getCourseName(course), course);
     }
 
@@ -72,9 +115,9 @@ public class CourseChangeListener implements Runnable {
      * @return The name of that course
      */
     private static String getCourseName(int id) {
-        HTTPResponse r = newHttpRequest("https://moodle.rwth-aachen.de/course/resources.php?id="+id)
-                .send().waitFor();
-        String s = r.data.substring(r.data.indexOf("<title>") + 7);
+        String data = MoodleClient.send(MoodleClient.newRequest(MoodleClient.BASE_URL + "/course/resources.php?id="+id),
+                MoodleClient.ofString()).body();
+        String s = data.substring(data.indexOf("<title>") + 7);
         String title = s.substring(0, s.indexOf("</title>"));
         title = title.replaceFirst("^\\([A-Z]+\\)", "");
         return title.substring(0, title.indexOf(':')).replace("&amp;", "&").strip();
@@ -84,110 +127,134 @@ public class CourseChangeListener implements Runnable {
 
     /**
      * Runs the change listener. If changes are found this method will
-     * call the callback listeners.
+     * call the callback listeners. If the diff listener fails, the new files are not
+     * stored and the exception is rethrown.
      */
     @Override
     public synchronized void run() {
         Console.logTime("Checking", course.name + "...");
-        currentTime = System.currentTimeMillis();
-        traffic = 0;
+        traffic.set(0);
+        modified.set(false);
+        foundNewFiles = false;
 
         File currentFiles = getCurrentFiles();
-        JsonObject storedFiles = getStoredFiles();
-        File oldFiles = storedFiles.getElement(course.id+"").as(File.class);
-        File diff = currentFiles.diff(oldFiles, false);
-
-        storedFiles.put(""+ course.id, currentFiles);
-        // Combine with old files: don't accidentally delete all stored data
-        storedFiles.getObject(course.id+"").combine((JsonObject) oldFiles.toJson());
-        Json.store(storedFiles, new java.io.File("files.json"));
+        File oldFiles = getStoredFiles();
+        if(!guard.accept(currentFiles, oldFiles)) {
+            // The page cache already took the new pages, so the next run would see them
+            // as unmodified
+            if(modified.get()) diffPending = true;
+            Console.logTime("Skipped", course.name);
+            return;
+        }
+        // Unchanged pages can't contain new files, and leave the stored files as they are
+        boolean changed = modified.get() || diffPending;
+        File diff = null;
+        if(changed) {
+            diff = currentFiles.diff(oldFiles, false);
+            Console.mapDebug("Changes", new Object() {
+                // Only computed if the debug output is printed
+                @Override
+                public String toString() {
+                    return currentFiles.changes(oldFiles).toString();
+                }
+            });
+        }
 
+        // Notify before storing the new files, so the diff is found again if notifying
+        // fails. Repeated notifications for the same diff are ignored by the outbox.
         if(diff != null) {
-            try {
-                diffListener.accept(diff);
-            } catch(Exception e) {
-                Console.error("Exception in diff listener");
-                Console.error(e);
-            }
+            foundNewFiles = true;
+            diffPending = true;
+            diffListener.accept(diff);
         }
         else Console.debug("No diff");
+        diffPending = false;
 
-        long offset = 16 * 60 * 60 * 1000L;
-        long threshold = currentTime + offset;
-        List<File> timedFiles = new ArrayList<>();
-        for(File file : oldFiles.getFiles()) {
-            if(file.deadline == null || file.deadline == -1) continue;
-            if(file.deadline >= currentTime && file.deadline <= threshold && file.deadline > file.lastCheck + offset)
-                timedFiles.add(file);
+        if(changed) {
+            // Keep the removed files, don't accidentally delete all stored data
+            snapshots.put(course, currentFiles.merge(oldFiles));
+            deadlines.update(course, currentFiles);
         }
-        if(!timedFiles.isEmpty())
-            deadlineListener.accept(course, timedFiles);
-        else Console.debug("No new critical deadlines");
 
-        Console.logTime("Done: {} new files, {} deadline files", diff != null ? diff.getFiles().length : 0, timedFiles.size());
-        Console.mapDebug("HTTP Traffic", traffic / 1000f, "KB");
+        Console.logTime("Done: {} new files", diff != null ? diff.getFiles().length : 0);
+        Console.mapDebug("HTTP Traffic", traffic.get() / 1000f, "KB");
+        Console.mapDebug("Request queue", RequestGovernor.getWaitStats());
         System.gc();
     }
 
+    /**
+     * Returns whether the last run of this listener found new files.
+     *
+     * @return Whether new files were found
+     */
+    public boolean foundNewFiles() {
+        return foundNewFiles;
+    }
+
     // ---------------------------------------------------
 
     /**
-     * Loads the stored file history from disk, if present. Otherwise, an appropriate
-     * empty file tree stump will be returned. The returned json object is ensured to
-     * have a mapping for the id of this course as string to a file with information
-     * about this course.
+     * Returns the stored file tree of this course, if present. Otherwise, an appropriate
+     * empty file tree stump will be returned. The returned file tree must not be modified.
      *
      * @return The stored files
      */
-    public JsonObject getStoredFiles() {
-        JsonObject storedFiles;
-        try {
-            storedFiles = Json.load("files.json").asObject();
-            if(storedFiles.containsKey(course.id+""))
-                return storedFiles;
-        } catch(Exception e) {
-            Console.warn(e);
-            storedFiles = new JsonObject();
-        }
-        File oldFiles = new File();
-        oldFiles.name = course.name;
-        oldFiles.description = course.id+"";
-        oldFiles.type = "folder";
-        oldFiles.url = course.url;
-        storedFiles.put(course.id+"", oldFiles);
-        return storedFiles;
+    public File getStoredFiles() {
+        return snapshots.get(course);
     }
 
     // ---------------------------------------------------
 
     /**
      * Fetches the currently available files. WARNING: This may not include any actual files
-     * when moodle does not work or is under maintenance.
+     * when moodle does not work or is under maintenance, see {@link SnapshotGuard}.
+     * <p>The resources, tasks and tests are fetched concurrently.</p>
      *
      * @return The currently available files
      */
     @NotNull
     public File getCurrentFiles() {
+        CompletableFuture<File> resources = CompletableFuture.supplyAsync(this::getCurrentResources, FETCH_EXECUTOR);
+        CompletableFuture<File> tasks = CompletableFuture.supplyAsync(this::getCurrentTasks, FETCH_EXECUTOR);
+        CompletableFuture<File> tests = CompletableFuture.supplyAsync(this::getCurrentTests, FETCH_EXECUTOR);
+
         File currentFiles = new File();
         currentFiles.type = "folder";
         currentFiles.name = course.name;
         currentFiles.description = course.id+"";
-        currentFiles.url = "https://moodle.rwth-aachen.de/course/view.php?id=" + course.id;
+        currentFiles.url = MoodleClient.BASE_URL + "/course/view.php?id=" + course.id;
 
-        currentFiles.add(getCurrentResources());
-        currentFiles.add(getCurrentTasks());
-        currentFiles.add(getCurrentTests());
+        currentFiles.add(join(resources));
+        currentFiles.add(join(tasks));
+        currentFiles.add(join(tests));
 
         return currentFiles;
     }
 
+    /**
+     * Waits for the given future to complete and returns its result. If the future
+     * completed exceptionally, the original exception is rethrown.
+     *
+     * @param future The future to wait for
+     * @return The result of the future
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof RuntimeException cause) throw cause;
+            if(e.getCause() instanceof Error cause) throw cause;
+            throw e;
+        }
+    }
+
     /**
      * Fetches the currently available files in the resources tab of the course.
      *
      * @return The currently available resource file tree
      */
     private File getCurrentResources() {
-        return parseTablePage("resources", "https://moodle.rwth-aachen.de/course/resources.php", this::addResourceEntry);
+        return expandFolders(fetchTablePage("resources", MoodleClient.BASE_URL + "/course/resources.php", MoodlePageParser::parseResourceRow));
     }
 
     /**
@@ -196,7 +263,7 @@ public class CourseChangeListener implements Runnable {
      * @return The currently available tasks
      */
     private File getCurrentTasks() {
-        return parseTablePage("tasks", "https://moodle.rwth-aachen.de/mod/assign/index.php", (e,c) -> addTaskOrTest(e, c, "task"));
+        return fetchTablePage("tasks", MoodleClient.BASE_URL + "/mod/assign/index.php", (h,i,j,c) -> MoodlePageParser.parseTaskRow(h, i, j, c, "task"));
     }
 
     /**
@@ -205,84 +272,76 @@ public class CourseChangeListener implements Runnable {
      * @return The currently available tests
      */
     private File getCurrentTests() {
-        return parseTablePage("tests", "https://moodle.rwth-aachen.de/mod/quiz/index.php", (e,c) -> addTaskOrTest(e, c, "test"));
+        return fetchTablePage("tests", MoodleClient.BASE_URL + "/mod/quiz/index.php", (h,i,j,c) -> MoodlePageParser.parseTaskRow(h, i, j, c, "test"));
     }
 
     /**
-     * Parses the file tree for the given moodle page with a table as main content. Each
-     * entry will be parsed using the specified entry parser.
+     * Fetches the file tree for the given moodle page with a table as main content. The
+     * page will only be parsed if the table changed since the last fetch, otherwise the
+     * previously parsed file tree is returned.
      *
      * @param name The name for the produced file tree
      * @param url The url of the produced file tree
-     * @param entryParser The parser applied to each row of the table. The parser takes the
-     *                    html of the row and the file to add the parsed file tree to as
-     *                    parameters and returns the section name (the value in the first
-     *                    column), if present
-     * @return The parsed file tree
+     * @param rowParser The parser applied to each row of the table, see
+     *                  {@link MoodlePageParser#parseTable(String, String, CharSequence, MoodlePageParser.RowParser)}
+     * @return The file tree of the page
      */
-    private File parseTablePage(String name, String url, BiFunction<String, File, String> entryParser) {
-        HTTPResponse r = newCourseHttpRequest(url)
-                .send().waitFor();
-        traffic += r.bytes.length;
-
-        File folder = new File();
-        folder.name = name;
-        folder.url = url + "?id=" + course.id;
-        folder.type = "folder";
-
-        int end = r.data.indexOf("</tbody>");
-        if(end == -1) return folder;
-        for(String section : ("\"></div></td></tr>\n" + r.data.substring(r.data.indexOf("<tbody>") + 7, r.data.indexOf("</tbody>"))).split("tabledivider")) {
-
-            File sectionFile = new File();
-            sectionFile.type = "folder";
-
-            String[] entries = section.split("</tr>");
-            for(int i=1; i<entries.length-1; i++) {
-                String n = entryParser.apply(entries[i], sectionFile);
-                if(sectionFile.name == null) sectionFile.name = n;
-            }
-
-            folder.add(sectionFile);
-        }
-        return folder;
+    private File fetchTablePage(String name, String url, MoodlePageParser.RowParser rowParser) {
+        String pageUrl = url + "?id=" + course.id;
+        PageCache.Page page = pages.fetch(pageUrl, "<tbody>", "</tbody>",
+                data -> MoodlePageParser.parseTable(name, pageUrl, data, rowParser));
+        traffic.addAndGet(page.bytes);
+        if(page.modified) modified.set(true);
+        return page.file;
     }
 
     /**
-     * Parses a table row on a resource page and adds it to the specified container.
-     * This also includes the file tree of folders and subfolders.
+     * Returns a copy of the given file tree where each folder placeholder on the resources
+     * page is replaced with the actual file tree of that folder. The folders are fetched
+     * concurrently, at most {@link #MAX_CONCURRENT_FOLDERS} at a time. Cached folders that
+     * are no longer present on the resources page are removed from the cache.
      *
-     * @param entry The table row string
-     * @param container The file to add the generated file tree to
-     * @return The name of the section
+     * @param resources The resources file tree, as parsed from the resources page
+     * @return The resources file tree including the contents of all folders
      */
-    private String addResourceEntry(String entry, File container) {
-
-        String rem = entry.substring(entry.indexOf("<td class=\"cell c0\" style=\"text-align:center;\">") + 47);
-        String name = rem.substring(0, rem.indexOf("</td>"));
-
-        File file = new File();
-
-        rem = rem.substring(rem.indexOf("href=\"") + 6);
-        file.url = rem.substring(0, rem.indexOf('"'));
-
-        rem = rem.substring(rem.indexOf("src=\"") + 5);
-        file.setTypeFromImageUrl(rem.substring(0, rem.indexOf('"')));
-
-        rem = rem.substring(rem.indexOf("/>") + 3); // There's a space after '/>'
-        file.name = rem.substring(0, rem.indexOf("</a>")).replace("&amp;", "&");
-
-        int descriptionStart = rem.indexOf("<div class=\"no-overflow\">");
-        if(descriptionStart != -1) {
-            rem = rem.substring(descriptionStart, rem.indexOf("</div>", descriptionStart) + 6).replace("<br>", "\n");
-            file.description = XML.getParser(rem, XMLParser.HTML).next().getText();
+    private File expandFolders(File resources) {
+        Semaphore permits = new Semaphore(MAX_CONCURRENT_FOLDERS);
+        Set<String> folderUrls = new HashSet<>();
+        List<File> sections = new ArrayList<>();
+        List<List<CompletableFuture<File>>> sectionEntries = new ArrayList<>();
+
+        for(File section : resources) {
+            File expandedSection = new File();
+            expandedSection.name = section.name;
+            expandedSection.type = section.type;
+            sections.add(expandedSection);
+
+            List<CompletableFuture<File>> entries = new ArrayList<>();
+            for(File entry : section) {
+                if(!entry.type.equals("folder")) {
+                    entries.add(CompletableFuture.completedFuture(entry));
+                    continue;
+                }
+                folderUrls.add(entry.url);
+                permits.acquireUninterruptibly();
+                entries.add(CompletableFuture.supplyAsync(() -> getFolderContents(entry.name, entry.url), FETCH_EXECUTOR)
+                        .whenComplete(($,e) -> permits.release()));
+            }
+            sectionEntries.add(entries);
         }
 
-        if(file.type.equals("folder"))
-            file = getFolderContents(file.name, file.url);
+        File expanded = new File();
+        expanded.name = resources.name;
+        expanded.url = resources.url;
+        expanded.type = resources.type;
+        for(int i=0; i<sections.size(); i++) {
+            for(CompletableFuture<File> entry : sectionEntries.get(i))
+                sections.get(i).add(join(entry));
+            expanded.add(sections.get(i));
+        }
 
-        container.add(file);
-        return name;
+        folders.retainAll(folderUrls);
+        return expanded;
     }
 
     /**
@@ -293,116 +352,11 @@ public class CourseChangeListener implements Runnable {
      * @return The file tree of the folder
      */
     private File getFolderContents(String name, String url) {
-
-        HTTPResponse r = newHttpRequest(url).send().waitFor();
-        traffic += r.bytes.length;
-        String files = r.data.substring(r.data.indexOf("class=\"filemanager\">") + 20);
-
-        File folder = parseFileTree(XML.getParser(files).next().children.get(0));
-        folder.name = name;
-        folder.url = url;
-        return folder;
-    }
-
-    /**
-     * Parses the file tree represented by the specified node.
-     *
-     * @param node The file tree root (an li element)
-     * @return The parsed file tree
-     */
-    private File parseFileTree(Node node) {
-        File file = new File();
-        file.name = node.children.get(0).getText();
-
-        if(node.children.size() > 1) {
-            file.type = "folder";
-            for(Node subFile : node.children.get(1))
-                file.add(parseFileTree(subFile));
-        }
-        else {
-            file.setTypeFromImageUrl(node.children.get(0).children.get(0)
-                    .children.get(0).children.get(0).attributes.get("src"));
-            file.url = node.children.get(0).children.get(0).attributes.get("href");
-        }
-        return file;
-    }
-
-    /**
-     * Parses a table row on a tasks or tests page and adds it to the specified
-     * container file.
-     *
-     * @param entry The table row html
-     * @param container The container to add to
-     * @param type The type for the parsed files (-> task or test)
-     * @return The section name
-     */
-    private String addTaskOrTest(String entry, File container, String type) {
-
-        String rem = entry.substring(entry.indexOf(";\">")+3);
-        String sectionName = rem.substring(0, rem.indexOf("</td>"));
-
-        File file = new File();
-        file.type = type;
-
-        rem = rem.substring(rem.indexOf("href=\"")+6);
-        file.url = rem.substring(0, rem.indexOf('"'));
-        if(!file.url.startsWith("https"))
-            file.url = "https://moodle.rwth-aachen.de/" + file.url;
-
-        rem = rem.substring(rem.indexOf("\">")+2);
-        file.name = rem.substring(0, rem.indexOf("</a>")).replace("&amp;", "&");
-
-        rem = rem.substring(rem.indexOf(";\">")+3);
-        file.deadline = parseTime(rem.substring(0, rem.indexOf("</td>")));
-        file.lastCheck = currentTime;
-
-        container.add(file);
-
-        return sectionName;
-    }
-
-    /**
-     * Parser for dates on the moodle page.
-     */
-    @SuppressWarnings("SpellCheckingInspection")
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("EEEEEEE, dd. MMMMM yyyy, HH:mm", Locale.GERMAN);
-
-    /**
-     * Parses the timestamp from the given date string.
-     *
-     * @param time The date string, in the format DAY_W, DAY. MONTH YEAR, HOUR:MINUTE
-     * @return The corresponding time stamp
-     */
-    private static long parseTime(String time) {
-        if(time.equals("-")) return -1;
-        try {
-            return DATE_FORMAT.parse(time).getTime();
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    // ---------------------------------------------------
-
-    /**
-     * Creates a new http request for the specified url with '?id=[course.id]' appended
-     * and with a valid moodle login cookie set.
-     *
-     * @param url The request url
-     * @return The http request
-     */
-    private HTTPRequest newCourseHttpRequest(String url) {
-        return newHttpRequest(url + "?id=" + course.id);
-    }
-
-    /**
-     * Creates a new http request with a valid moodle login cookie set.
-     *
-     * @param url The request url
-     * @return The http request
-     */
-    private static HTTPRequest newHttpRequest(String url) {
-        Console.mapDebug("Fetching", url);
-        return new HTTPRequest(url).setCookies(MoodleCookie.COOKIE);
+        PageCache.Page page = folders.fetch(url, MoodlePageParser.FOLDER_TREE_START, MoodlePageParser.FOLDER_TREE_END,
+                data -> MoodlePageParser.parseFolder(name, url, data));
+        traffic.addAndGet(page.bytes);
+        if(page.modified) modified.set(true);
+        // The cached file tree has the name from when the folder page last changed
+        return name.equals(page.file.name) ? page.file : page.file.withName(name);
     }
 }
@@ -0,0 +1,187 @@
+package de.rwth.discord.moodle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import com.github.rccookie.util.Console;
+
+/**
+ * Global index of upcoming deadlines of all courses. For each file with a deadline, one
+ * reminder is created per configured offset, and the reminders are kept in a priority
+ * queue ordered by their due time. A single timer thread waits for the earliest reminder
+ * and reports all due reminders of a course together, independent of when the course
+ * is polled.
+ * <p>The reminders of a course are replaced whenever its files are updated, so changed
+ * or removed deadlines are respected. Reminders that are due before the files of a
+ * course are first updated are not reported, so a restart does not repeat reminders.</p>
+ * <p>Additionally, the upcoming deadlines of each course are kept sorted, so that the
+ * next deadline of a course can be looked up without walking its files.</p>
+ */
+public class DeadlineIndex {
+
+    /**
+     * The callback receiving the due files of a course.
+     */
+    private final BiConsumer<Course, Collection<File>> listener;
+    /**
+     * The reminder offsets, time before the deadline, in milliseconds.
+     */
+    private final long[] offsets;
+
+    /**
+     * The pending reminders, earliest first.
+     */
+    private final PriorityQueue<Reminder> reminders = new PriorityQueue<>();
+    /**
+     * The upcoming deadlines of each course as of its last update, by course id. The sets
+     * are replaced, not modified.
+     */
+    private final Map<Integer, NavigableSet<Long>> deadlines = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a new deadline index and starts its timer thread.
+     *
+     * @param listener The callback receiving the due files of a course
+     * @param offsets The reminder offsets, time before the deadline, in milliseconds
+     */
+    public DeadlineIndex(BiConsumer<Course, Collection<File>> listener, long... offsets) {
+        if(offsets.length == 0) throw new IllegalArgumentException("At least one reminder offset required");
+        this.listener = listener;
+        this.offsets = offsets.clone();
+        Arrays.sort(this.offsets);
+
+        Thread timer = new Thread(this::runTimer, "Deadline timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Replaces the upcoming reminders of the given course with reminders for the deadlines
+     * in the given file tree. Reminders that are due already are still reported.
+     *
+     * @param course The course of the files
+     * @param files The current file tree of the course
+     */
+    public void update(Course course, File files) {
+        long now = System.currentTimeMillis();
+        List<Reminder> added = new ArrayList<>();
+        NavigableSet<Long> courseDeadlines = new TreeSet<>();
+        for(File file : files.getFiles()) {
+            if(file.deadline == null || file.deadline <= now) continue;
+            courseDeadlines.add(file.deadline);
+            for(long offset : offsets)
+                if(file.deadline - offset > now)
+                    added.add(new Reminder(file.deadline - offset, course, file));
+        }
+
+        synchronized(reminders) {
+            // Due reminders may not have been taken by the timer yet, they are not re-added
+            reminders.removeIf(r -> r.course.id == course.id && r.time > now);
+            reminders.addAll(added);
+            reminders.notifyAll();
+        }
+        deadlines.put(course.id, courseDeadlines);
+    }
+
+    /**
+     * Returns the next upcoming deadline of the given course, as of the last update of
+     * its files.
+     *
+     * @param course The id of the course
+     * @return The next deadline, or -1 if there is none
+     */
+    public long getNextDeadline(int course) {
+        NavigableSet<Long> courseDeadlines = deadlines.get(course);
+        Long next = courseDeadlines != null ? courseDeadlines.higher(System.currentTimeMillis()) : null;
+        return next != null ? next : -1;
+    }
+
+    /**
+     * Returns the number of pending reminders.
+     *
+     * @return The number of pending reminders
+     */
+    public int size() {
+        synchronized(reminders) {
+            return reminders.size();
+        }
+    }
+
+    /**
+     * Waits for due reminders and reports them, grouped by course.
+     */
+    private void runTimer() {
+        while(true) {
+            Map<Integer, List<Reminder>> due = new LinkedHashMap<>();
+            try {
+                synchronized(reminders) {
+                    long now = System.currentTimeMillis();
+                    while(reminders.isEmpty() || reminders.peek().time > now) {
+                        if(reminders.isEmpty()) reminders.wait();
+                        else reminders.wait(reminders.peek().time - now);
+                        now = System.currentTimeMillis();
+                    }
+                    while(!reminders.isEmpty() && reminders.peek().time <= now) {
+                        Reminder reminder = reminders.poll();
+                        due.computeIfAbsent(reminder.course.id, $ -> new ArrayList<>()).add(reminder);
+                    }
+                }
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            for(List<Reminder> courseReminders : due.values()) {
+                List<File> files = new ArrayList<>();
+                for(Reminder reminder : courseReminders)
+                    if(!files.contains(reminder.file)) files.add(reminder.file);
+                try {
+                    listener.accept(courseReminders.get(0).course, files);
+                } catch(Exception e) {
+                    Console.error("Exception in deadline listener");
+                    Console.error(e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A pending reminder for a single deadline.
+     */
+    private static final class Reminder implements Comparable<Reminder> {
+
+        /**
+         * The time when the reminder is due.
+         */
+        final long time;
+        /**
+         * The course of the file.
+         */
+        final Course course;
+        /**
+         * The file with the deadline.
+         */
+        final File file;
+
+        Reminder(long time, Course course, File file) {
+            this.time = time;
+            this.course = course;
+            this.file = file;
+        }
+
+        @Override
+        public int compareTo(Reminder o) {
+            return Long.compare(time, o.time);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.rwth.discord.moodle;
+
+import java.nio.file.Path;
+
+/**
+ * A downloaded document, stored in a file on disk. The document must be closed once it is
+ * no longer needed, which deletes temporary files or releases cached files.
+ */
+public final class Document implements AutoCloseable {
+
+    /**
+     * The filename of the document.
+     */
+    public final String name;
+    /**
+     * The file containing the document's content.
+     */
+    public final Path path;
+    /**
+     * The size of the document, in bytes.
+     */
+    public final long size;
+    /**
+     * The ETag sent by the server for the document, if any.
+     */
+    public final String eTag;
+    /**
+     * The hex encoded SHA-256 hash of the document's content.
+     */
+    public final String hash;
+    /**
+     * Action to run when the document is closed.
+     */
+    private final Runnable onClose;
+
+    /**
+     * Creates a new document.
+     *
+     * @param name The filename of the document
+     * @param path The file containing the document's content
+     * @param size The size of the document, in bytes
+     * @param eTag The ETag sent by the server for the document, if any
+     * @param hash The hex encoded SHA-256 hash of the document's content
+     * @param onClose Action to run when the document is closed
+     */
+    public Document(String name, Path path, long size, String eTag, String hash, Runnable onClose) {
+        this.name = name;
+        this.path = path;
+        this.size = size;
+        this.eTag = eTag;
+        this.hash = hash;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public void close() {
+        onClose.run();
+    }
+}
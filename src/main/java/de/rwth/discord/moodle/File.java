@@ -1,7 +1,25 @@
 package de.rwth.discord.moodle;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -12,8 +30,8 @@ import java.util.Set;
 import com.github.rccookie.json.JsonDeserialization;
 import com.github.rccookie.json.JsonObject;
 import com.github.rccookie.json.JsonSerializable;
+import com.github.rccookie.util.Console;
 import com.github.rccookie.util.Utils;
-import com.github.rccookie.util.http.HTTPRequest;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -32,7 +50,7 @@ public class File implements Iterable<File>, JsonSerializable {
             json.get("description").toOptional().ifPresent(d -> file.description = d.asString());
             json.get("children").toOptional().ifPresent(c -> file.setChildren(c.as(File[].class)));
             json.get("deadline").toOptional().ifPresent(d -> file.deadline = d.asLong());
-            json.get("lastCheck").toOptional().ifPresent(d -> file.lastCheck = d.asLong());
+            json.get("digest").toOptional().ifPresent(d -> file.digest = d.asString());
             return file;
         });
     }
@@ -55,6 +73,10 @@ public class File implements Iterable<File>, JsonSerializable {
      * Set of types of files that may be loaded and attached to a message.
      */
     private static final Set<String> LOADABLE_TYPES = Set.of("pdf", "txt");
+    /**
+     * The path of icon urls before the theme name, see {@link #setTypeFromImageUrl(String)}.
+     */
+    private static final String THEME_IMAGE = "/theme/image.php/";
 
 
     /**
@@ -77,16 +99,17 @@ public class File implements Iterable<File>, JsonSerializable {
      * Deadline timestamp of the file, if the file has a deadline.
      */
     public Long deadline;
-    /**
-     * Last time the deadline was checked.
-     */
-    public Long lastCheck;
 
     /**
      * Files contained in this folder. The type should be 'folder' if this is used.
      */
     private final List<File> children = new ArrayList<>();
 
+    /**
+     * Cached digest of this file tree, see {@link #digest()}.
+     */
+    private String digest = null;
+
 
     /**
      * Creates a new file.
@@ -113,6 +136,8 @@ public class File implements Iterable<File>, JsonSerializable {
     public boolean equals(Object o) {
         if(this == o) return true;
         if(!(o instanceof File file)) return false;
+        // Different digests are a cheap proof of inequality
+        if(digest != null && file.digest != null && !digest.equals(file.digest)) return false;
         return equalsLocal(file) && Objects.equals(children, file.children);
     }
 
@@ -131,7 +156,7 @@ public class File implements Iterable<File>, JsonSerializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, type, url, description, children, deadline);
+        return digest().hashCode();
     }
 
     @Override
@@ -141,11 +166,15 @@ public class File implements Iterable<File>, JsonSerializable {
 
 
     /**
-     * Adds the given file as child of this file
+     * Adds the given file as child of this file. This is only possible as long as the
+     * digest of this file tree was not computed, see {@link #digest()}.
      *
      * @param child The file to add
+     * @throws IllegalStateException If the digest of this file was computed already
      */
     public void add(File child) {
+        // The digests of the parents can't be invalidated, there are no parent links
+        if(digest != null) throw new IllegalStateException("Cannot add to " + name + ", its digest was computed already");
         children.add(child);
     }
 
@@ -160,15 +189,106 @@ public class File implements Iterable<File>, JsonSerializable {
     }
 
     /**
-     * Parses the file type from the given icon url and sets it.
+     * Creates a deep copy of this file tree.
+     *
+     * @return A copy of this file tree
+     */
+    public File copy() {
+        File copy = new File(name, type, url, description);
+        copy.deadline = deadline;
+        for(File child : children) copy.add(child.copy());
+        copy.digest = digest;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this file with the given name. The children are shared with
+     * this file, not copied.
+     *
+     * @param name The name for the copy
+     * @return A copy of this file with the given name
+     */
+    public File withName(String name) {
+        File copy = new File(name, type, url, description);
+        copy.deadline = deadline;
+        copy.children.addAll(children);
+        return copy;
+    }
+
+    /**
+     * Returns the digest of this file tree. The digest is a hash over the local properties
+     * of this file (those compared by {@link #diff(File, boolean)}) and the digests of all
+     * children, regardless of their order. Equal digests thus mean that two file trees
+     * don't differ.
+     * <p>The digest is computed once and then cached, and it is also stored when serializing
+     * the file to json. Therefore, a file tree must not be modified anymore once its digest
+     * was computed. Computing the digest also computes the digests of all subtrees, so
+     * that {@link #add(File)} rejects adding children anywhere in the tree afterwards.</p>
+     *
+     * @return The digest of this file tree
+     */
+    public String digest() {
+        String digest = this.digest;
+        if(digest == null)
+            this.digest = digest = computeDigest();
+        return digest;
+    }
+
+    /**
+     * Computes the digest of this file tree.
+     *
+     * @return The digest of this file tree
+     */
+    private String computeDigest() {
+        MessageDigest md = sha256();
+        update(md, name);
+        update(md, type);
+        update(md, url);
+        update(md, description);
+        update(md, deadline != null ? deadline.toString() : null);
+
+        String[] childDigests = new String[children.size()];
+        for(int i=0; i<childDigests.length; i++)
+            childDigests[i] = children.get(i).digest();
+        Arrays.sort(childDigests);
+        for(String childDigest : childDigests)
+            update(md, childDigest);
+
+        return Base64.getEncoder().encodeToString(md.digest());
+    }
+
+    /**
+     * Updates the given message digest with the specified, possibly {@code null} string.
+     *
+     * @param md The message digest to update
+     * @param s The string to add to the digest
+     */
+    private static void update(MessageDigest md, String s) {
+        if(s == null) {
+            md.update((byte) 0);
+            return;
+        }
+        md.update((byte) 1);
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    /**
+     * Parses the file type from the given icon url and sets it. The url is expected in the
+     * form {@code <base>/theme/image.php/<theme>/<component>/<revision>/<image>}, where core
+     * file icons have images like {@code f/pdf-24}, and module icons are named after their
+     * component, for example {@code folder}.
      *
      * @param url The url of the thumbnail icon
      */
     public void setTypeFromImageUrl(String url) {
-        String partUrl = url.substring(64);
-        if(partUrl.startsWith("core"))
-            type = partUrl.substring(partUrl.lastIndexOf('/')+1, partUrl.lastIndexOf('-'));
-        else type = partUrl.substring(0, partUrl.indexOf('/'));
+        int start = url.indexOf(THEME_IMAGE);
+        String partUrl = start == -1 ? url : url.substring(url.indexOf('/', start + THEME_IMAGE.length()) + 1);
+        if(start == -1 || partUrl.startsWith("core")) {
+            String image = partUrl.substring(partUrl.lastIndexOf('/')+1);
+            type = image.indexOf('-') == -1 ? image : image.substring(0, image.lastIndexOf('-'));
+        }
+        else type = partUrl.indexOf('/') == -1 ? partUrl : partUrl.substring(0, partUrl.indexOf('/'));
     }
 
     /**
@@ -223,22 +343,12 @@ public class File implements Iterable<File>, JsonSerializable {
 
     /**
      * Returns the final url of this file, which is the url that the file's url redirects to,
-     * if it does.
+     * if it does. The redirect is cached, see {@link RedirectCache}.
      *
      * @return The final redirected url of this file's url
      */
     public String getFinalUrl() {
-        String url = this.url;
-        while(!url.endsWith("forcedownload=1")) {
-            String newUrl = new HTTPRequest(url)
-                    .setMethod(HTTPRequest.Method.HEAD)
-                    .setCookies(MoodleCookie.COOKIE)
-                    .allowRedirects(false)
-                    .send().waitFor().header.get("Location");
-            if(newUrl == null || newUrl.equals(url)) break;
-            url = newUrl;
-        }
-        return url;
+        return RedirectCache.resolve(url);
     }
 
     /**
@@ -251,14 +361,64 @@ public class File implements Iterable<File>, JsonSerializable {
     }
 
     /**
-     * Downloads whatever the file's url points to and returns the downloaded bytes.
+     * Downloads whatever the file's url points to into a temporary file. The download is
+     * streamed to disk, and aborted as soon as it is known to exceed the given size, either
+     * from the Content-Length header or while reading. Closing the returned document deletes
+     * the temporary file.
+     *
+     * @param maxSize The maximum size of the document, in bytes
+     * @return The downloaded document, or {@code null} if it is larger than the maximum size
+     */
+    public Document loadDocument(long maxSize) {
+        HttpResponse<InputStream> response = MoodleClient.send(MoodleClient.newRequest(url), MoodleClient.ofInputStream());
+        try(InputStream in = response.body()) {
+            if(response.headers().firstValueAsLong("Content-Length").orElse(-1) > maxSize)
+                return null;
+
+            MessageDigest md = sha256();
+            Path temp = Files.createTempFile("moodle", null);
+            long size = 0;
+            try(OutputStream out = Files.newOutputStream(temp)) {
+                byte[] buffer = new byte[8192];
+                for(int n; (n = in.read(buffer)) != -1; ) {
+                    if((size += n) > maxSize) break;
+                    out.write(buffer, 0, n);
+                    md.update(buffer, 0, n);
+                }
+            } catch(IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            if(size > maxSize) {
+                Files.deleteIfExists(temp);
+                return null;
+            }
+            return new Document(getFileName(), temp, size,
+                    response.headers().firstValue("ETag").orElse(null),
+                    HexFormat.of().formatHex(md.digest()),
+                    () -> {
+                        try {
+                            Files.deleteIfExists(temp);
+                        } catch(IOException e) {
+                            Console.warn("Failed to delete", temp + ":", e);
+                        }
+                    });
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns a new SHA-256 message digest.
      *
-     * @return The downloaded data
+     * @return A SHA-256 message digest
      */
-    public byte[] loadDocument() {
-        return new HTTPRequest(url)
-                .setCookies(MoodleCookie.COOKIE)
-                .send().waitFor().bytes;
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
     }
 
     /**
@@ -279,7 +439,7 @@ public class File implements Iterable<File>, JsonSerializable {
         if(description != null) json.put("description", description);
         if(!children.isEmpty()) json.put("children", children);
         if(deadline != null) json.put("deadline", deadline);
-        if(lastCheck != null) json.put("lastCheck", lastCheck);
+        json.put("digest", digest());
         return json;
     }
 
@@ -289,6 +449,9 @@ public class File implements Iterable<File>, JsonSerializable {
      * symmetric is false, only additional files in this file tree are returned,
      * otherwise also missing files (aka additional files in the other file
      * tree).
+     * <p>The children of each level are matched using a hash index, so the
+     * difference is computed in linear time. Subtrees with equal digests are
+     * skipped entirely.</p>
      *
      * @param other The file tree to compare to
      * @param symmetric Whether to compute the symmetric difference, or only
@@ -298,32 +461,144 @@ public class File implements Iterable<File>, JsonSerializable {
     public File diff(File other, boolean symmetric) {
         if(other == null) return this;
         if(!equalsLocal(other)) return this;
+        if(digest().equals(other.digest())) return null;
 
         File diff = new File(name, type, url, description);
 
-        List<File> rem = new ArrayList<>(children), remOther = new ArrayList<>(other.children);
-        while(!rem.isEmpty()) {
-            File child = rem.remove(0);
-            File oChild = null;
-            for(File o : remOther) {
-                if(child.equalsLocal(o)) {
-                    oChild = o;
-                    remOther.remove(o);
-                    break;
-                }
-            }
+        Map<LocalKey, Deque<File>> otherChildren = index(other.children);
+        Set<File> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(File child : children) {
+            File oChild = poll(otherChildren, new LocalKey(child));
             if(oChild == null) diff.add(child);
             else {
+                matched.add(oChild);
                 File innerDiff = child.diff(oChild, symmetric);
                 if(innerDiff != null) diff.add(innerDiff);
             }
         }
-        if(symmetric)
-            diff.children.addAll(remOther);
+        if(symmetric) {
+            for(File oChild : other.children)
+                if(!matched.contains(oChild)) diff.add(oChild);
+        }
 
         return diff.children.isEmpty() ? null : diff;
     }
 
+    /**
+     * Returns a file tree containing the files of this file tree and additionally the
+     * files of the given file tree that are missing in this one, for example because they
+     * were removed from moodle. Files are matched like in {@link #diff(File, boolean)}.
+     * <p>Subtrees with equal digests or only present in one of the trees are shared with
+     * the returned tree, only the files on the paths to differing subtrees are created
+     * anew. Neither tree is modified.</p>
+     *
+     * @param other The file tree to merge into this one, usually an older version of this tree
+     * @return The merged file tree
+     */
+    public File merge(File other) {
+        if(other == null || !equalsLocal(other) || digest().equals(other.digest())) return this;
+
+        File merged = new File(name, type, url, description);
+        merged.deadline = deadline;
+
+        Map<LocalKey, Deque<File>> otherChildren = index(other.children);
+        Set<File> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(File child : children) {
+            File oChild = poll(otherChildren, new LocalKey(child));
+            if(oChild == null) merged.add(child);
+            else {
+                matched.add(oChild);
+                merged.add(child.merge(oChild));
+            }
+        }
+        for(File oChild : other.children)
+            if(!matched.contains(oChild)) merged.add(oChild);
+        return merged;
+    }
+
+    /**
+     * Computes the changes from the given file tree to this file tree. Files only
+     * present in this file tree are reported as added, files only present in the
+     * other file tree as removed. A file that is only present in one of the trees,
+     * but has a counterpart with the same name and type in the other one (for example
+     * because its deadline changed), is reported as modified instead.
+     *
+     * @param other The file tree to compare to, usually an older version of this tree
+     * @return The changes between the two file trees
+     */
+    public Changes changes(File other) {
+        Changes changes = new Changes();
+        if(other == null) changes.added.add(this);
+        else if(!equalsLocal(other)) changes.modified.add(this);
+        else collectChanges(other, changes);
+        return changes;
+    }
+
+    /**
+     * Collects the changes between the children of this file and the given file,
+     * which must be equal locally.
+     *
+     * @param other The file to compare to
+     * @param changes The changes to add to
+     */
+    private void collectChanges(File other, Changes changes) {
+        if(digest().equals(other.digest())) return;
+
+        Map<LocalKey, Deque<File>> otherChildren = index(other.children);
+        Set<File> matched = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<File> unmatched = new ArrayList<>();
+        for(File child : children) {
+            File oChild = poll(otherChildren, new LocalKey(child));
+            if(oChild == null) unmatched.add(child);
+            else {
+                matched.add(oChild);
+                child.collectChanges(oChild, changes);
+            }
+        }
+
+        Map<String, Deque<File>> removed = new HashMap<>();
+        for(File oChild : other.children)
+            if(!matched.contains(oChild))
+                removed.computeIfAbsent(oChild.name + '/' + oChild.type, $ -> new ArrayDeque<>()).add(oChild);
+
+        for(File child : unmatched) {
+            Deque<File> candidates = removed.get(child.name + '/' + child.type);
+            if(candidates != null && !candidates.isEmpty()) {
+                candidates.poll();
+                changes.modified.add(child);
+            }
+            else changes.added.add(child);
+        }
+        for(Deque<File> remaining : removed.values())
+            changes.removed.addAll(remaining);
+    }
+
+    /**
+     * Indexes the given files by their local identity. Files with the same local
+     * identity are kept in their original order.
+     *
+     * @param files The files to index
+     * @return The files by local identity
+     */
+    private static Map<LocalKey, Deque<File>> index(List<File> files) {
+        Map<LocalKey, Deque<File>> index = new HashMap<>(files.size() * 2);
+        for(File file : files)
+            index.computeIfAbsent(new LocalKey(file), $ -> new ArrayDeque<>()).add(file);
+        return index;
+    }
+
+    /**
+     * Removes and returns the first file with the given local identity from the index.
+     *
+     * @param index The index to remove from
+     * @param key The local identity to find a file for
+     * @return The first indexed file with that identity, or {@code null}
+     */
+    private static File poll(Map<LocalKey, Deque<File>> index, LocalKey key) {
+        Deque<File> files = index.get(key);
+        return files != null ? files.poll() : null;
+    }
+
     /**
      * Returns the files in this file tree that are actual files and
      * not folders, in other words, the leafs of this file tree.
@@ -345,4 +620,72 @@ public class File implements Iterable<File>, JsonSerializable {
         if(children.isEmpty()) list.add(this);
         else for(File child : this) child.addFiles(list);
     }
+
+
+    /**
+     * Wrapper around a file whose equality is defined by {@link #equalsLocal(File)}.
+     */
+    private static final class LocalKey {
+
+        /**
+         * The wrapped file.
+         */
+        private final File file;
+        /**
+         * The cached hash code.
+         */
+        private final int hash;
+
+        LocalKey(File file) {
+            this.file = file;
+            this.hash = Objects.hash(file.name, file.type, file.url, file.description, file.deadline);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LocalKey k && hash == k.hash && file.equalsLocal(k.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The changes between two file trees, as computed by {@link #changes(File)}.
+     */
+    public static final class Changes {
+
+        /**
+         * Files (or whole file trees) that were added.
+         */
+        public final List<File> added = new ArrayList<>();
+        /**
+         * Files (or whole file trees) that were removed.
+         */
+        public final List<File> removed = new ArrayList<>();
+        /**
+         * Files whose url, description or deadline changed. Contains the new
+         * versions of the files.
+         */
+        public final List<File> modified = new ArrayList<>();
+
+        private Changes() {
+        }
+
+        /**
+         * Returns whether there are no changes at all.
+         *
+         * @return Whether there are no changes
+         */
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return added.size() + " added, " + removed.size() + " removed, " + modified.size() + " modified";
+        }
+    }
 }
@@ -1,10 +1,18 @@
 package de.rwth.discord.moodle;
 
+import java.nio.file.Path;
 import java.time.Instant;
+import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
 
 import javax.security.auth.login.LoginException;
 
@@ -29,44 +37,95 @@ import net.dv8tion.jda.api.requests.restaction.MessageAction;
 public class MoodleBot extends AbstractMoodleBot {
 
     /**
-     * The channel to post in.
+     * Maximum total size of the files attached to a single message, in bytes.
      */
-    private final MessageChannel channel;
+    private static final long MAX_UPLOAD_SIZE = 8000000;
     /**
-     * The server that the channel is within.
+     * Maximum number of files attached to a single message.
      */
-    private final Guild guild;
+    private static final int MAX_FILES_PER_MESSAGE = 10;
+    /**
+     * Maximum number of embeds in a single message.
+     */
+    private static final int MAX_EMBEDS_PER_MESSAGE = 10;
+    /**
+     * Maximum total size of the attachments being downloaded or waiting to be uploaded,
+     * in bytes.
+     */
+    private static final long DOWNLOAD_BUDGET = 64000000;
+
+    /**
+     * Executor used to download attachments concurrently.
+     */
+    private static final ExecutorService DOWNLOAD_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Attachment download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The channels to post in, by channel id.
+     */
+    private final Map<Long, Destination> destinations = new HashMap<>();
+    /**
+     * The channel for notifications stored without target.
+     */
+    private final Destination defaultDestination;
     /**
      * The jda instance.
      */
     private final JDA jda;
+    /**
+     * Cache for downloaded attachments.
+     */
+    private final AttachmentCache attachments;
+    /**
+     * Limits the total size of the attachments being downloaded or waiting to be
+     * uploaded, in kilobytes.
+     */
+    private final Semaphore downloadBudget = new Semaphore(kb(DOWNLOAD_BUDGET));
 
 
     /**
-     * Creates a new MoodleBot for the specified courses posing into the specified channel.
+     * Creates a new MoodleBot for the specified courses posting into the specified channels.
      *
-     * @param channelID The id of the channel to post updates to
-     * @param interval The update interval of a single course
+     * @param interval The initial update interval of a single course, in seconds
+     * @param minInterval The minimum update interval of a single course, in seconds
+     * @param maxInterval The maximum update interval of a single course, in seconds
+     * @param parallelism The maximum number of courses to check concurrently
+     * @param reminders The times before a deadline at which to remind of it, in milliseconds
+     * @param queueCapacity The maximum number of notifications waiting to be sent
+     * @param overflow What to do when too many notifications are waiting to be sent
+     * @param window Time that notifications are delayed to be sent together with notifications
+     *               of other courses, in milliseconds
+     * @param digestTime The time of day to send the daily digest of new files at, or
+     *                   {@code null} to report new files immediately
+     * @param attachmentCacheSize The size limit of the attachment cache, in bytes
+     * @param targets The channels to post updates to
      * @param courses The courses to monitor
      */
-    public MoodleBot(long channelID, int interval, int... courses) throws LoginException, InterruptedException {
-        super(interval, courses);
+    public MoodleBot(int interval, int minInterval, int maxInterval, int parallelism, long[] reminders, int queueCapacity, NotificationQueue.OverflowPolicy overflow, long window, LocalTime digestTime, long attachmentCacheSize, List<NotificationTarget> targets, int... courses) throws LoginException, InterruptedException {
+        super(interval, minInterval, maxInterval, parallelism, reminders, queueCapacity, overflow, window, digestTime, targets, courses);
+        attachments = new AttachmentCache(Path.of("attachments"), attachmentCacheSize);
 
         //noinspection ConstantConditions
         jda = JDABuilder.createLight(Utils.readAll(MoodleBot.class.getClassLoader().getResourceAsStream("bot.token")))
                 .build().awaitReady();
-        channel = jda.getChannelById(MessageChannel.class, channelID);
-        if(channel == null) throw new IllegalArgumentException("Channel not found: " + channelID);
-
-        Guild guild = null;
-        for(Guild g : jda.getGuilds()) {
-            if(g.getChannelById(MessageChannel.class, channelID) != null) {
-                guild = g;
-                break;
+        for(NotificationTarget target : targets) {
+            MessageChannel channel = jda.getChannelById(MessageChannel.class, target.channel);
+            if(channel == null) throw new IllegalArgumentException("Channel not found: " + target.channel);
+
+            Guild guild = null;
+            for(Guild g : jda.getGuilds()) {
+                if(g.getChannelById(MessageChannel.class, target.channel) != null) {
+                    guild = g;
+                    break;
+                }
             }
+            if(guild == null) throw new AssertionError();
+            destinations.put(target.channel, new Destination(channel, guild));
         }
-        this.guild = guild;
-        if(guild == null) throw new AssertionError();
+        defaultDestination = destinations.get(targets.get(0).channel);
 
         jda.addEventListener(new SubscriptionManager(jda));
         start();
@@ -83,49 +142,276 @@ public class MoodleBot extends AbstractMoodleBot {
     }
 
     @Override
-    protected void handleFiles(Course course, Collection<File> files, String descSing, String descPlural, boolean uploadFiles) {
+    protected CompletableFuture<?> send(List<Notification> notifications, BiConsumer<Notification, Throwable> sent) {
+
+        long target = notifications.get(0).target;
+        Destination destination = target == 0 ? defaultDestination : destinations.get(target);
+        if(destination == null) {
+            Console.warn("Channel", target, "is no longer configured, dropping notifications:", notifications);
+            return CompletableFuture.completedFuture(null);
+        }
+        MessageChannel channel = destination.channel;
 
         channel.sendTyping().queue();
 
+        // Pack the embeds into as few messages as possible
+        List<List<MessageEmbed>> messages = new ArrayList<>();
+        List<List<Notification>> contained = new ArrayList<>();
+        List<File> uploads = new ArrayList<>();
+        int length = 0;
+        for(Notification notification : notifications) {
+            File[] fs = notification.files.stream().limit(25).toArray(File[]::new);
+            MessageEmbed embed = createEmbed(notification, fs);
+            if(messages.isEmpty() || messages.get(messages.size()-1).size() >= MAX_EMBEDS_PER_MESSAGE
+                    || length + embed.getLength() > MessageEmbed.EMBED_MAX_LENGTH_BOT) {
+                messages.add(new ArrayList<>());
+                contained.add(new ArrayList<>());
+                length = 0;
+            }
+            messages.get(messages.size()-1).add(embed);
+            contained.get(contained.size()-1).add(notification);
+            length += embed.getLength();
+            if(notification.uploadFiles) uploads.addAll(Arrays.asList(fs));
+        }
+
+        // Each notification is done once the message with its embed was sent
+        CompletableFuture<?> message = channel.sendMessage("<@&" + SubscriptionManager.getMoodleRole(destination.guild).getId() + ">")
+                .setEmbeds(messages.get(0)).submit();
+        for(int i=0; i<messages.size(); i++) {
+            List<MessageEmbed> embeds = messages.get(i);
+            if(i != 0) message = message.thenCompose($ -> channel.sendMessageEmbeds(embeds).submit());
+            List<Notification> sentWith = contained.get(i);
+            message.whenComplete(($,e) -> sentWith.forEach(n -> sent.accept(n, e)));
+        }
+
+        if(uploads.isEmpty()) return message;
+        return new Upload(channel, message).start(uploads.toArray(new File[0]));
+    }
+
+    /**
+     * Creates the embed for the given notification.
+     *
+     * @param notification The notification to create the embed for
+     * @param fs The files of the notification to list, at most 25
+     * @return The embed
+     */
+    private static MessageEmbed createEmbed(Notification notification, File[] fs) {
         EmbedBuilder embed = new EmbedBuilder();
-        embed.setTitle(course.name, course.url);
+        embed.setTitle(notification.course.name, notification.course.url);
         embed.setFooter("Use /sub to receive notifications"); // MoodleBot by RcCookie •
         embed.setColor(0xf47f22);
-        embed.setTimestamp(Instant.now());
+        embed.setTimestamp(Instant.ofEpochMilli(notification.created));
 
-        File[] fs = files.stream().limit(25).toArray(File[]::new);
+        embed.setDescription((fs.length == 1 ? notification.descSing : notification.descPlural) + "\n\u200b");
 
-        embed.setDescription((fs.length == 1 ? descSing: descPlural) + "\n\u200b");
+        RedirectCache.resolveAll(Arrays.asList(fs));
 
         for(File file : fs)
             embed.addField(new MessageEmbed.Field(file.name, file.getMarkdownDescription(), false));
+        return embed.build();
+    }
+
 
-        List<MessageAction> actions = new ArrayList<>();
-        actions.add(channel.sendMessage("<@&" + SubscriptionManager.getMoodleRole(guild).getId() + ">").setEmbeds(embed.build()));
 
-        if(uploadFiles) {
-            int currentSize = 8000000;
-            int currentCount = 0;
+    /**
+     * Uploads the attachments of a batch of notifications. The documents are downloaded
+     * concurrently and packed into messages of at most {@link #MAX_UPLOAD_SIZE} bytes and
+     * {@link #MAX_FILES_PER_MESSAGE} files in the order the downloads complete. Each message
+     * is sent as soon as it is full, after the previous messages of the batch.
+     * <p>The downloads are limited by {@link #downloadBudget}: before a download starts, the
+     * maximum document size is reserved, and after it completed, the size of the document
+     * stays reserved until it was uploaded.</p>
+     */
+    private final class Upload {
 
-            for(File file : fs) {
-                if(!file.isLoadable()) continue;
-                byte[] bytes = file.loadDocument();
-                if(bytes.length > 8000000) {
-                    Console.warn(file.name + ":", "Too big for upload ({} MB)", bytes.length / 1000000f);
-                    continue;
+        /**
+         * The channel to upload to.
+         */
+        private final MessageChannel channel;
+        /**
+         * Completes once the last message scheduled so far was sent.
+         */
+        private CompletableFuture<?> sent;
+        /**
+         * The downloaded documents that were not uploaded yet.
+         */
+        private final List<Document> documents = new ArrayList<>();
+        /**
+         * The documents for the next message.
+         */
+        private final List<Document> batch = new ArrayList<>();
+        /**
+         * The total size of the documents for the next message, in bytes.
+         */
+        private long batchSize = 0;
+        /**
+         * Whether the embeds could not be sent, so no attachments will be uploaded.
+         */
+        private volatile boolean failed = false;
+
+        /**
+         * Creates a new upload.
+         *
+         * @param channel The channel to upload to
+         * @param embed Completes once the embeds of the notifications were sent
+         */
+        Upload(MessageChannel channel, CompletableFuture<?> embed) {
+            this.channel = channel;
+            this.sent = embed;
+            embed.whenComplete(($,e) -> {
+                if(e != null) failed = true;
+            });
+        }
+
+        /**
+         * Starts downloading the given files.
+         *
+         * @param files The files to attach, files that cannot be loaded are skipped
+         * @return A future that completes once all documents were uploaded, and fails
+         *         if the embeds could not be sent
+         */
+        CompletableFuture<?> start(File[] files) {
+            CompletableFuture<?>[] downloads = Arrays.stream(files)
+                    .filter(File::isLoadable)
+                    .map(f -> CompletableFuture.runAsync(() -> download(f), DOWNLOAD_EXECUTOR))
+                    .toArray(CompletableFuture[]::new);
+            return CompletableFuture.allOf(downloads)
+                    .handle(($,e) -> {
+                        synchronized(this) {
+                            flush();
+                            return sent;
+                        }
+                    })
+                    .thenCompose(f -> f)
+                    .whenComplete(($,e) -> {
+                        synchronized(this) {
+                            // Remaining if the embeds failed
+                            close(documents);
+                        }
+                    });
+        }
+
+        /**
+         * Downloads the given file and adds it to the next message.
+         *
+         * @param file The file to download
+         */
+        private void download(File file) {
+            if(failed) return;
+            downloadBudget.acquireUninterruptibly(kb(MAX_UPLOAD_SIZE));
+            if(failed) {
+                downloadBudget.release(kb(MAX_UPLOAD_SIZE));
+                return;
+            }
+            Document document;
+            try {
+                document = attachments.load(file, MAX_UPLOAD_SIZE);
+            } catch(Exception e) {
+                downloadBudget.release(kb(MAX_UPLOAD_SIZE));
+                Console.warn("Failed to download", file.name + ":", e);
+                return;
+            }
+            if(document == null) {
+                downloadBudget.release(kb(MAX_UPLOAD_SIZE));
+                Console.warn(file.name + ":", "Too big for upload (over {} MB)", MAX_UPLOAD_SIZE / 1000000f);
+                return;
+            }
+            downloadBudget.release(kb(MAX_UPLOAD_SIZE) - kb(document.size));
+
+            synchronized(this) {
+                documents.add(document);
+                if(failed) {
+                    close(List.of(document));
+                    return;
                 }
-                if((currentSize += bytes.length) > 8000000 || currentCount >= 10) {
-                    actions.add(channel.sendFile(bytes, file.getFileName()));
-                    currentSize = bytes.length;
-                    currentCount = 0;
+                if(!batch.isEmpty() && (batchSize + document.size > MAX_UPLOAD_SIZE || batch.size() >= MAX_FILES_PER_MESSAGE))
+                    flush();
+                batch.add(document);
+                batchSize += document.size;
+            }
+        }
+
+        /**
+         * Schedules the documents for the next message to be sent after the previous
+         * messages. The documents are closed once the message was sent or failed, or when
+         * the embeds failed. Must be called while holding the lock.
+         */
+        private void flush() {
+            if(batch.isEmpty()) return;
+            List<Document> documents = List.copyOf(batch);
+            batch.clear();
+            batchSize = 0;
+            sent = sent.handle(($,e) -> e).thenCompose(error -> {
+                if(error != null) {
+                    // Embeds failed, keep the failure for the notification
+                    failed = true;
+                    synchronized(this) {
+                        close(documents);
+                    }
+                    return CompletableFuture.failedFuture(error);
+                }
+                CompletableFuture<?> upload;
+                try {
+                    MessageAction action = channel.sendFile(documents.get(0).path.toFile(), documents.get(0).name);
+                    for(Document document : documents.subList(1, documents.size()))
+                        action = action.addFile(document.path.toFile(), document.name);
+                    upload = action.submit();
+                } catch(RuntimeException e) {
+                    upload = CompletableFuture.failedFuture(e);
                 }
-                else actions.set(actions.size()-1, actions.get(actions.size()-1).addFile(bytes, file.getFileName()));
-                currentCount++;
+                return upload.handle((m,e) -> {
+                    if(e != null) Console.warn("Failed to upload attachments:", e);
+                    synchronized(this) {
+                        close(documents);
+                    }
+                    return null;
+                });
+            });
+        }
+
+        /**
+         * Closes the given documents, if not already closed, and releases their share of
+         * the download budget. Must be called while holding the lock.
+         *
+         * @param documents The documents to close
+         */
+        private void close(List<Document> documents) {
+            for(Document document : documents) {
+                if(!this.documents.remove(document)) continue;
+                document.close();
+                downloadBudget.release(kb(document.size));
             }
         }
+    }
 
-        for(MessageAction action : actions)
-            action.complete();
+    /**
+     * A channel to post in.
+     */
+    private static final class Destination {
+
+        /**
+         * The channel.
+         */
+        final MessageChannel channel;
+        /**
+         * The server that the channel is within.
+         */
+        final Guild guild;
+
+        Destination(MessageChannel channel, Guild guild) {
+            this.channel = channel;
+            this.guild = guild;
+        }
+    }
+
+    /**
+     * Returns the given size in kilobytes, rounded up.
+     *
+     * @param bytes The size in bytes
+     * @return The size in kilobytes
+     */
+    private static int kb(long bytes) {
+        return (int) ((bytes + 999) / 1000);
     }
 
 
@@ -134,23 +420,48 @@ public class MoodleBot extends AbstractMoodleBot {
         ArgsParser parser = new ArgsParser();
         parser.addDefaults();
         parser.setName("MoodleBot");
-        parser.setDescription("Usage: moodleBot -c <channel> <options> courseIDs...");
-        parser.addOption('c', "channel", true, "ID of the channel to send notifications to (required)");
-        parser.addOption('i', "interval", true, "Interval in seconds between two checks for the same course. Default is 300");
+        parser.setDescription("Usage: moodleBot -c <channels> <options> [courseIDs...]");
+        parser.addOption('c', "channel", true, "Semicolon separated IDs of the channels to send notifications to, each optionally followed by a colon and comma separated course IDs to only send notifications of those courses, e.g. '123;456:1001,1002' (required)");
+        parser.addOption('i', "interval", true, "Initial interval in seconds between two checks for the same course. Default is 300");
+        parser.addOption('m', "min-interval", true, "Minimum interval in seconds, used for courses with new files. Default is 120");
+        parser.addOption('x', "max-interval", true, "Maximum interval in seconds, reached by courses without changes. Default is 3600");
+        parser.addOption('p', "parallel", true, "Maximum number of courses checked concurrently. Default is 8");
+        parser.addOption('r', "reminders", true, "Comma separated hours before a deadline at which to remind of it. Default is 16");
+        parser.addOption('q', "queue-size", true, "Maximum number of notifications waiting to be sent. Default is 100");
+        parser.addOption('o', "overflow", true, "What to do when the notification queue is full: block, drop-newest or drop-oldest. Default is block");
+        parser.addOption('w', "window", true, "Seconds to wait for notifications of other courses to send them together. Default is 30");
+        parser.addOption('d', "digest", true, "Report new files once a day at the given time (HH:mm) instead of immediately. Deadline reminders are still sent immediately");
+        parser.addOption('a', "attachment-cache", true, "Size limit of the attachment cache in MB. Default is 500");
         Args options = parser.parse(args);
-        if(options.getArgs().length == 0) {
-            Console.warn("No courses specified");
-            parser.showHelp(); // Automatically quits
-        }
         if(!options.is("channel")) {
             Console.error("Missing options -c / --channel. Use --help for more information");
             System.exit(1);
         }
+        List<NotificationTarget> targets = NotificationTarget.parseAll(options.get("channel"));
+
+        // Without explicit courses, monitor all courses of the targets
+        int[] courses = Arrays.stream(options.getArgs()).mapToInt(Integer::parseInt).toArray();
+        if(courses.length == 0)
+            courses = targets.stream().flatMap(t -> t.courses.stream()).mapToInt(Integer::intValue).distinct().sorted().toArray();
+        if(courses.length == 0) {
+            Console.warn("No courses specified");
+            parser.showHelp(); // Automatically quits
+        }
 
+        int interval = options.getIntOr("interval", 300);
         new MoodleBot(
-                options.getLong("channel"),
-                options.getIntOr("interval", 300),
-                Arrays.stream(options.getArgs()).mapToInt(Integer::parseInt).toArray()
+                interval,
+                options.getIntOr("min-interval", Math.min(120, interval)),
+                options.getIntOr("max-interval", Math.max(3600, interval)),
+                options.getIntOr("parallel", 8),
+                Arrays.stream(options.getOr("reminders", "16").split(",")).mapToLong(h -> (long) (Double.parseDouble(h.strip()) * 3600000)).toArray(),
+                options.getIntOr("queue-size", 100),
+                NotificationQueue.OverflowPolicy.parse(options.getOr("overflow", "block")),
+                options.getIntOr("window", 30) * 1000L,
+                options.is("digest") ? LocalTime.parse(options.get("digest")) : null,
+                options.getIntOr("attachment-cache", 500) * 1000000L,
+                targets,
+                courses
         );
     }
 }
@@ -0,0 +1,307 @@
+package de.rwth.discord.moodle;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.github.rccookie.util.Console;
+
+/**
+ * Utility class holding the http client shared by all requests to moodle. The client keeps
+ * connections alive and uses HTTP/2 if possible. All requests accept gzip and deflate
+ * compressed responses, use the body handlers of this class ({@link #ofBytes()},
+ * {@link #ofString()} and {@link #ofInputStream()}) to decode them.
+ * <p>Redirects are followed by this class rather than the client, so that the login cookie
+ * is only ever sent to moodle, and so that redirects to the login page can be detected. If
+ * a request gets redirected to the login page, the cookie will be renewed and the request
+ * will be sent again.</p>
+ * <p>All requests are throttled by the {@link RequestGovernor}.</p>
+ */
+public final class MoodleClient {
+
+    private MoodleClient() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The base url of moodle, without trailing slash. Can be changed using the system
+     * property {@code moodle.url}, for example to test against a local server.
+     */
+    public static final String BASE_URL = System.getProperty("moodle.url", "https://moodle.rwth-aachen.de").replaceAll("/+$", "");
+    /**
+     * The host of moodle, the only host that the login cookie is sent to.
+     */
+    static final String MOODLE_HOST = URI.create(BASE_URL).getHost();
+    /**
+     * Maximum number of redirects followed for a single request.
+     */
+    private static final int MAX_REDIRECTS = 10;
+
+    /**
+     * The shared http client.
+     */
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    /**
+     * Executor waiting for the {@link RequestGovernor} before requests are sent.
+     */
+    private static final ExecutorService QUEUE_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Request queue");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Executor used to renew the login cookie for asynchronous requests, as it blocks.
+     */
+    private static final ExecutorService LOGIN_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Login");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Creates a new request builder for the specified url. The login cookie will be
+     * set when sending the request.
+     *
+     * @param url The request url
+     * @return The request builder
+     */
+    public static HttpRequest.Builder newRequest(String url) {
+        Console.mapDebug("Fetching", url);
+        return HttpRequest.newBuilder(URI.create(url));
+    }
+
+    /**
+     * Sends the given request, following redirects, and waits for the response.
+     *
+     * @param request The request to send
+     * @param bodyHandler The handler for the response body
+     * @return The response
+     */
+    public static <T> HttpResponse<T> send(HttpRequest.Builder request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return join(sendAsync(request, bodyHandler));
+    }
+
+    /**
+     * Sends the given request, following redirects, without waiting for the response.
+     *
+     * @param request The request to send
+     * @param bodyHandler The handler for the response body
+     * @return A future completing with the response
+     */
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest.Builder request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return sendAsync(request.build(), bodyHandler, MoodleCookie.get(), true, true, MAX_REDIRECTS);
+    }
+
+    /**
+     * Sends the given request and waits for the response, without following redirects.
+     * The login cookie is renewed if necessary.
+     *
+     * @param request The request to send
+     * @param bodyHandler The handler for the response body
+     * @return The response, which may be a redirect
+     */
+    public static <T> HttpResponse<T> sendWithoutRedirects(HttpRequest.Builder request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return join(sendAsync(request.build(), bodyHandler, MoodleCookie.get(), true, false, 0));
+    }
+
+    /**
+     * Sends the given request with the specified login cookie, following redirects, and
+     * waits for the response. The cookie will not be renewed if it is expired.
+     *
+     * @param request The request to send
+     * @param bodyHandler The handler for the response body
+     * @param cookie The login cookie to use
+     * @return The response
+     */
+    public static <T> HttpResponse<T> send(HttpRequest.Builder request, HttpResponse.BodyHandler<T> bodyHandler, String cookie) {
+        return join(sendAsync(request.build(), bodyHandler, cookie, false, true, MAX_REDIRECTS));
+    }
+
+    /**
+     * Sends the given request, handling redirects.
+     *
+     * @param request The request to send
+     * @param bodyHandler The handler for the response body
+     * @param cookie The login cookie to use
+     * @param renew Whether the cookie may be renewed if the request is redirected to the login page
+     * @param follow Whether to follow redirects, otherwise a redirect is returned as response
+     * @param redirects The maximum number of redirects to follow
+     * @return A future completing with the response, or failing with an {@link IOException}
+     *         if redirects should be followed and there were too many
+     */
+    private static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, String cookie, boolean renew, boolean follow, int redirects) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (n,v) -> true)
+                .setHeader("Accept-Encoding", "gzip, deflate");
+        if(cookie != null && MOODLE_HOST.equals(request.uri().getHost()))
+            builder.setHeader("Cookie", cookie);
+
+        return CompletableFuture.supplyAsync(() -> RequestGovernor.acquire(request.uri()), QUEUE_EXECUTOR)
+                .thenCompose(permit -> CLIENT.sendAsync(builder.build(), info -> isRedirect(info.statusCode()) && info.headers().firstValue("Location").isPresent() ?
+                                HttpResponse.BodySubscribers.replacing(null) : bodyHandler.apply(info))
+                        .whenComplete((response, e) -> {
+                            if(response != null) {
+                                if(isMaintenancePage(response)) permit.releaseMaintenance();
+                                else permit.release(response.statusCode());
+                            }
+                            else if(e instanceof IOException || e.getCause() instanceof IOException) permit.release(-1);
+                            // Not caused by moodle, e.g. a failing body handler
+                            else permit.releaseNeutral();
+                        }))
+                .thenCompose(response -> {
+                    String location = response.headers().firstValue("Location").orElse(null);
+                    if(!isRedirect(response.statusCode()) || location == null)
+                        return CompletableFuture.completedFuture(response);
+
+                    URI target = response.uri().resolve(location);
+                    if(renew && MoodleCookie.isLoginUrl(target.toString()))
+                        return CompletableFuture.supplyAsync(() -> MoodleCookie.renew(cookie), LOGIN_EXECUTOR)
+                                .thenCompose(c -> sendAsync(request, bodyHandler, c, false, follow, redirects));
+                    if(!follow)
+                        return CompletableFuture.completedFuture(response);
+                    // The body of a redirect is not read, so it can't be returned
+                    if(redirects <= 0)
+                        return CompletableFuture.failedFuture(new IOException("Too many redirects, last to " + target));
+
+                    String method = request.method().equals("HEAD") ? "HEAD" : "GET";
+                    HttpRequest redirect = HttpRequest.newBuilder(target)
+                            .method(method, HttpRequest.BodyPublishers.noBody())
+                            .build();
+                    return sendAsync(redirect, bodyHandler, cookie, renew, true, redirects - 1);
+                });
+    }
+
+    /**
+     * Returns whether the given response is the moodle maintenance page. Only bodies that
+     * were read completely are checked, streamed bodies are not.
+     *
+     * @param response The response to test
+     * @return Whether the response is the maintenance page
+     */
+    private static boolean isMaintenancePage(HttpResponse<?> response) {
+        Object body = response.body();
+        if(body instanceof String html) return RequestGovernor.isMaintenancePage(html);
+        if(body instanceof byte[] bytes) return RequestGovernor.isMaintenancePage(new String(bytes, StandardCharsets.UTF_8));
+        return false;
+    }
+
+    /**
+     * Returns whether the given status code is a redirect.
+     *
+     * @param statusCode The status code to test
+     * @return Whether it is a redirect
+     */
+    private static boolean isRedirect(int statusCode) {
+        return statusCode >= 300 && statusCode < 400 && statusCode != 304;
+    }
+
+    /**
+     * Waits for the given future and returns its result, unwrapping exceptions.
+     *
+     * @param future The future to wait for
+     * @return The result of the future
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof IOException cause) throw new UncheckedIOException(cause);
+            if(e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    // ---------------------------------------------------
+
+    /**
+     * Returns a body handler returning the decoded response body as bytes.
+     *
+     * @return A decoding byte array body handler
+     */
+    public static HttpResponse.BodyHandler<byte[]> ofBytes() {
+        return info -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), bytes -> {
+            if(bytes.length == 0 || info.headers().firstValue("Content-Encoding").isEmpty()) return bytes;
+            try(InputStream in = decode(info, new ByteArrayInputStream(bytes))) {
+                return in.readAllBytes();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Returns a body handler returning the decoded response body as UTF-8 string.
+     *
+     * @return A decoding string body handler
+     */
+    public static HttpResponse.BodyHandler<String> ofString() {
+        HttpResponse.BodyHandler<byte[]> bytes = ofBytes();
+        return info -> HttpResponse.BodySubscribers.mapping(bytes.apply(info), b -> new String(b, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a body handler returning the response body as stream, which is decoded
+     * while reading.
+     *
+     * @return A decoding input stream body handler
+     */
+    public static HttpResponse.BodyHandler<InputStream> ofInputStream() {
+        return info -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), in -> new InputStream() {
+            // Decoding streams read from the source on creation, which must not happen in the mapper
+            InputStream decoded = null;
+
+            private InputStream decoded() throws IOException {
+                if(decoded == null) decoded = decode(info, in);
+                return decoded;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return decoded().read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return decoded().read(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        });
+    }
+
+    /**
+     * Wraps the given stream according to the content encoding of the response.
+     *
+     * @param info The response info
+     * @param in The raw response body
+     * @return The decoded response body
+     */
+    private static InputStream decode(HttpResponse.ResponseInfo info, InputStream in) throws IOException {
+        String encoding = info.headers().firstValue("Content-Encoding").orElse("identity").trim().toLowerCase();
+        return switch(encoding) {
+            case "gzip", "x-gzip" -> new GZIPInputStream(in);
+            case "deflate" -> new InflaterInputStream(in);
+            default -> in;
+        };
+    }
+}
@@ -4,14 +4,19 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.github.rccookie.util.Console;
-import com.github.rccookie.util.http.HTTPRequest;
-import com.github.rccookie.util.http.HTTPResponse;
 
 /**
- * Utility class with a single field {@link #COOKIE}; a valid moodle login cookie.
- * Initializing the class will load the cookie.
+ * Utility class providing a valid moodle login cookie, see {@link #get()}. Initializing
+ * the class will load the cookie.
+ * <p>When a request finds the cookie to be expired, it should call {@link #renew(String)},
+ * which logs in again exactly once, no matter how many requests found the cookie to be
+ * expired concurrently. Additionally, the cookie is checked regularly in the background
+ * and renewed before it gets too old.</p>
  */
 public final class MoodleCookie {
 
@@ -20,27 +25,136 @@ public final class MoodleCookie {
     }
 
     /**
-     * A valid moodle login cookie.
+     * The file that the cookie is cached in.
      */
-    public static final String COOKIE = getCookie();
+    private static final Path COOKIE_FILE = Path.of("moodlelogin.cookie");
+    /**
+     * Interval in which the cookie is checked in the background, in milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 15 * 60 * 1000L;
+    /**
+     * Age after which the cookie is renewed proactively, in milliseconds.
+     */
+    private static final long MAX_AGE = 12 * 60 * 60 * 1000L;
+
+    /**
+     * The current moodle login cookie.
+     */
+    private static volatile String cookie;
+    /**
+     * The time when the current cookie was created.
+     */
+    private static volatile long cookieTime;
+
+    static {
+        loadCookie();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Cookie refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(MoodleCookie::refresh, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Returns a valid moodle login cookie, in the form "MoodleSession=...".
+     *
+     * @return The current moodle login cookie
+     */
+    public static String get() {
+        return cookie;
+    }
+
+    /**
+     * Renews the login cookie after it was found to be expired. If the cookie was already
+     * renewed since the given expired cookie was obtained, the current cookie is returned
+     * without logging in again. Concurrent callers wait for a single login.
+     *
+     * @param expired The cookie that was found to be expired
+     * @return A new valid login cookie
+     */
+    public static synchronized String renew(String expired) {
+        if(expired != null && !cookie.equals(expired)) return cookie;
+        Console.log("Moodle session expired, logging in again");
+        login();
+        return cookie;
+    }
+
+    /**
+     * Logs in and sets and caches the new cookie.
+     */
+    private static synchronized void login() {
+        String newCookie = MoodleLogin.getCookie();
+        try {
+            Files.writeString(COOKIE_FILE, newCookie);
+        } catch(IOException e) {
+            Console.warn("Failed to store login cookie:", e);
+        }
+        cookieTime = System.currentTimeMillis();
+        cookie = newCookie;
+    }
+
+    /**
+     * Returns whether the given url points to the moodle login page, meaning that a
+     * request was redirected because the session expired.
+     *
+     * @param url The url to test
+     * @return Whether the url is the login page
+     */
+    public static boolean isLoginUrl(String url) {
+        return url != null && url.contains("/login/index.php");
+    }
+
+    /**
+     * Returns whether the given html is the moodle login page, meaning that the session
+     * used for the request expired.
+     *
+     * @param html The html to test
+     * @return Whether the html is the login page
+     */
+    public static boolean isLoginPage(String html) {
+        return html.contains("id=\"page-login-index\"");
+    }
 
     /**
      * Loads a cached moodle cookie from disk. If no cached cookie was
      * found, or it isn't valid (anymore), a new cookie will be loaded
      * and cached.
-     *
-     * @return A valid moodle login cookie
      */
-    private static String getCookie() {
+    private static void loadCookie() {
         try {
-            String cookie;
-            Path cookieFile = Path.of("moodlelogin.cookie");
-            if(!Files.exists(cookieFile) || !testCookie(cookie = Files.readString(cookieFile)))
-                Files.writeString(cookieFile, cookie = MoodleLogin.getCookie());
-            return cookie;
+            if(Files.exists(COOKIE_FILE)) {
+                String cached = Files.readString(COOKIE_FILE);
+                if(testCookie(cached)) {
+                    cookieTime = Files.getLastModifiedTime(COOKIE_FILE).toMillis();
+                    cookie = cached;
+                    return;
+                }
+            }
         } catch(IOException e) {
             throw new UncheckedIOException(e);
         }
+        login();
+    }
+
+    /**
+     * Renews the cookie if it is too old or no longer valid.
+     */
+    private static void refresh() {
+        try {
+            String current = cookie;
+            if(System.currentTimeMillis() - cookieTime > MAX_AGE) {
+                Console.debug("Renewing login cookie proactively");
+                synchronized(MoodleCookie.class) {
+                    if(current.equals(cookie)) login();
+                }
+            }
+            else if(!testCookie(current)) renew(current);
+        } catch(Exception e) {
+            Console.error("Failed to refresh login cookie");
+            Console.error(e);
+        }
     }
 
     /**
@@ -50,10 +164,8 @@ public final class MoodleCookie {
      * @return Whether the given cookie is valid
      */
     private static boolean testCookie(String cookie) {
-        Console.mapDebug("Fetching", "https://moodle.rwth-aachen.de/user/files.php");
-        HTTPResponse r = new HTTPRequest("https://moodle.rwth-aachen.de/user/files.php")
-                .setCookies(cookie)
-                .send().waitFor();
-        return r.data.substring(0, 200).contains("<title>Meine Dateien</title>");
+        String data = MoodleClient.send(MoodleClient.newRequest(MoodleClient.BASE_URL + "/user/files.php"),
+                MoodleClient.ofString(), cookie).body();
+        return data.substring(0, Math.min(200, data.length())).contains("<title>Meine Dateien</title>");
     }
 }
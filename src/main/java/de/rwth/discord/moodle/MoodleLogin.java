@@ -1,7 +1,23 @@
 package de.rwth.discord.moodle;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import com.github.rccookie.util.ArgsParser;
 import com.github.rccookie.util.Console;
@@ -28,17 +44,196 @@ public final class MoodleLogin {
     }
 
     /**
-     * Generates a new moodle login cookie using the given login credentials.
+     * The url that starts the shibboleth login on moodle.
+     */
+    private static final String LOGIN_URL = MoodleClient.BASE_URL + "/auth/shibboleth/index.php";
+    /**
+     * Maximum number of forms submitted during the http login.
+     */
+    private static final int MAX_LOGIN_STEPS = 10;
+
+    /**
+     * Pattern matching a form, capturing the form's attributes and content.
+     */
+    private static final Pattern FORM = Pattern.compile("<form([^>]*)>(.*?)</form>", Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+    /**
+     * Pattern matching an input or button element, capturing the element's name and attributes.
+     */
+    private static final Pattern INPUT = Pattern.compile("<(input|button)([^>]*)>", Pattern.CASE_INSENSITIVE);
+    /**
+     * Pattern matching an html attribute, capturing its name and value.
+     */
+    private static final Pattern ATTRIBUTE = Pattern.compile("([\\w-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+    /**
+     * Pattern matching an html character reference, capturing the hex or decimal code
+     * or the name.
+     */
+    private static final Pattern CHAR_REFERENCE = Pattern.compile("&(?:#[xX]([0-9a-fA-F]+)|#(\\d+)|(amp|lt|gt|quot|apos));");
+
+    /**
+     * Generates a new moodle login cookie using the given login credentials. This uses
+     * plain http requests, and falls back to a headless browser if that fails.
      *
      * @param login The login credentials to use on sso.rwth-aachen.de
      * @return The login cookie, in the form "MoodleSession=..."
      */
     public static String getCookie(Login login) {
+        try {
+            return getCookie(login, LOGIN_URL);
+        } catch(Exception e) {
+            Console.warn("Http login failed, falling back to browser login:", e);
+            return getBrowserCookie(login);
+        }
+    }
+
+    /**
+     * Generates a new moodle login cookie using the given login credentials by walking
+     * through the shibboleth login using plain http requests. Starting at the given url,
+     * each page's form is submitted, filling in the credentials into the form with a
+     * password field, until being redirected back to moodle.
+     *
+     * @param login The login credentials to use on the identity provider
+     * @param loginUrl The moodle url starting the shibboleth login
+     * @return The login cookie, in the form "MoodleSession=..."
+     */
+    public static String getCookie(Login login, String loginUrl) {
+        URI moodle = URI.create(loginUrl).resolve("/");
+        CookieManager cookies = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        HttpClient client = HttpClient.newBuilder()
+                .cookieHandler(cookies)
+                .followRedirects(HttpClient.Redirect.ALWAYS)
+                .build();
+
+        Console.debug("Starting http login");
+        HttpResponse<String> response = send(client, HttpRequest.newBuilder(URI.create(loginUrl)).build());
+        boolean credentialsSent = false, returned = false;
+
+        for(int i=0; i<MAX_LOGIN_STEPS; i++) {
+            Matcher form = FORM.matcher(response.body());
+            boolean onMoodle = moodle.getHost().equals(response.uri().getHost());
+            if(!form.find() || (onMoodle && !response.body().contains("SAMLResponse"))) {
+                if(!onMoodle || !credentialsSent)
+                    throw new IllegalStateException("Login did not return to moodle, ended on " + response.uri());
+                returned = true;
+                break;
+            }
+
+            Map<String, String> formAttributes = attributes(form.group(1));
+            Map<String, String> fields = new LinkedHashMap<>();
+            String passwordField = null, usernameField = null;
+            Matcher input = INPUT.matcher(form.group(2));
+            while(input.find()) {
+                Map<String, String> inputAttributes = attributes(input.group(2));
+                String name = inputAttributes.get("name");
+                if(name == null) continue;
+                String type = inputAttributes.getOrDefault("type", input.group(1).equalsIgnoreCase("button") ? "submit" : "text").toLowerCase();
+                if(type.equals("password")) passwordField = name;
+                else if(usernameField == null && (type.equals("text") || type.equals("email")))
+                    usernameField = name;
+                // Only the proceed button is "clicked", only checked boxes are sent
+                else if(type.equals("submit") && !name.equals("_eventId_proceed")) continue;
+                else if((type.equals("checkbox") || type.equals("radio")) && !input.group(2).contains("checked")) continue;
+                fields.putIfAbsent(name, inputAttributes.getOrDefault("value", ""));
+            }
+
+            if(passwordField != null) {
+                if(credentialsSent) throw new IllegalStateException("Login credentials were rejected");
+                if(usernameField != null) fields.put(usernameField, login.username);
+                fields.put(passwordField, login.password);
+                credentialsSent = true;
+                Console.debug("Sending credentials");
+            }
+
+            URI action = response.uri().resolve(formAttributes.getOrDefault("action", ""));
+            String body = fields.entrySet().stream()
+                    .map(e -> URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+                    .collect(Collectors.joining("&"));
+            response = send(client, HttpRequest.newBuilder(action)
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build());
+        }
+        // The session cookie of a guest is set before the login, don't return that one
+        if(!returned)
+            throw new IllegalStateException("Login did not complete within " + MAX_LOGIN_STEPS + " steps, ended on " + response.uri());
+
+        String sessionCookie = cookies.getCookieStore().get(moodle).stream()
+                .filter(c -> c.getName().equals("MoodleSession"))
+                .map(c -> "MoodleSession=" + c.getValue())
+                .findAny()
+                .orElseThrow(() -> new IllegalStateException("No moodle session cookie received"));
+        Console.mapDebug("Login Cookie", sessionCookie);
+        return sessionCookie;
+    }
+
+    /**
+     * Sends the given request using the given client and waits for the response.
+     *
+     * @param client The client to use
+     * @param request The request to send
+     * @return The response
+     */
+    private static HttpResponse<String> send(HttpClient client, HttpRequest request) {
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parses the given html attribute string.
+     *
+     * @param attributes The attributes of an html element
+     * @return The attributes with decoded values, by lowercase name
+     */
+    private static Map<String, String> attributes(String attributes) {
+        Map<String, String> map = new HashMap<>();
+        Matcher m = ATTRIBUTE.matcher(attributes);
+        while(m.find())
+            map.put(m.group(1).toLowerCase(), decode(m.group(2) != null ? m.group(2) : m.group(3)));
+        return map;
+    }
+
+    /**
+     * Decodes the character references in the given html attribute value.
+     *
+     * @param value The value to decode
+     * @return The decoded value
+     */
+    private static String decode(String value) {
+        if(value.indexOf('&') == -1) return value;
+        return CHAR_REFERENCE.matcher(value).replaceAll(m -> {
+            String c;
+            if(m.group(1) != null) c = Character.toString(Integer.parseInt(m.group(1), 16));
+            else if(m.group(2) != null) c = Character.toString(Integer.parseInt(m.group(2)));
+            else c = switch(m.group(3)) {
+                case "amp" -> "&";
+                case "lt" -> "<";
+                case "gt" -> ">";
+                case "quot" -> "\"";
+                default -> "'";
+            };
+            return Matcher.quoteReplacement(c);
+        });
+    }
+
+    /**
+     * Generates a new moodle login cookie using the given login credentials by
+     * performing the login in a headless browser.
+     *
+     * @param login The login credentials to use on sso.rwth-aachen.de
+     * @return The login cookie, in the form "MoodleSession=..."
+     */
+    private static String getBrowserCookie(Login login) {
         Console.debug("Starting driver");
         WebDriver driver = new HtmlUnitDriver(true);
         Console.debug("Driver started");
 
-        driver.get("https://moodle.rwth-aachen.de/auth/shibboleth/index.php");
+        driver.get(LOGIN_URL);
 
         Console.debug("On login page");
 
@@ -0,0 +1,422 @@
+package de.rwth.discord.moodle;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+import com.github.rccookie.xml.XML;
+import com.github.rccookie.xml.XMLParser;
+
+/**
+ * Utility class parsing the file trees from moodle pages. The pages are scanned in a
+ * single pass using indices into the page, only the extracted values are copied.
+ */
+public final class MoodlePageParser {
+
+    private MoodlePageParser() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Parser for a single table row.
+     */
+    @FunctionalInterface
+    public interface RowParser {
+
+        /**
+         * Parses the table row in the given range of the page and adds it to the specified
+         * container.
+         *
+         * @param html The page html
+         * @param start The start index of the row, inclusive
+         * @param end The end index of the row, exclusive
+         * @param container The file to add the parsed file tree to
+         * @return The section name (the value in the first column), if present
+         */
+        String parse(CharSequence html, int start, int end, File container);
+    }
+
+
+    /**
+     * Marks the start of the resource name cell in a resource table row.
+     */
+    private static final String RESOURCE_CELL = "<td class=\"cell c0\" style=\"text-align:center;\">";
+    /**
+     * Marks the start of a resource description.
+     */
+    private static final String DESCRIPTION = "<div class=\"no-overflow\">";
+    /**
+     * Marks the start of the file tree on a folder page.
+     */
+    public static final String FOLDER_TREE_START = "class=\"filemanager\">";
+    /**
+     * Marks the end of the file tree on a folder page. Nested lists are always followed
+     * by the end of their list item, so this only matches after the outermost list.
+     */
+    public static final String FOLDER_TREE_END = "</ul></div>";
+
+    /**
+     * Parser for dates on the moodle page. Date formats are not thread safe, and
+     * multiple courses may be checked concurrently.
+     */
+    @SuppressWarnings("SpellCheckingInspection")
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = ThreadLocal.withInitial(() ->
+            new SimpleDateFormat("EEEEEEE, dd. MMMMM yyyy, HH:mm", Locale.GERMAN));
+
+
+    /**
+     * Parses the file tree of a moodle page with a table as main content. Each row is
+     * parsed using the specified row parser, rows are grouped into sections by the
+     * divider rows of the table.
+     *
+     * @param name The name for the produced file tree
+     * @param url The url for the produced file tree
+     * @param html The html of the page
+     * @param rowParser The parser applied to each row of the table
+     * @return The parsed file tree, empty if the page contains no table
+     */
+    public static File parseTable(String name, String url, CharSequence html, RowParser rowParser) {
+        File folder = new File();
+        folder.name = name;
+        folder.url = url;
+        folder.type = "folder";
+
+        int end = indexOf(html, "</tbody>", 0, html.length());
+        if(end == -1) return folder;
+        int start = indexOf(html, "<tbody>", 0, end);
+        start = start == -1 ? 0 : start + 7;
+
+        File section = newSection();
+        for(int i = start, rowEnd; (rowEnd = indexOf(html, "</tr>", i, end)) != -1; i = rowEnd + 5) {
+            if(indexOf(html, "tabledivider", i, rowEnd) != -1) {
+                folder.add(section);
+                section = newSection();
+                continue;
+            }
+            String sectionName = rowParser.parse(html, i, rowEnd, section);
+            if(section.name == null) section.name = sectionName;
+        }
+        folder.add(section);
+        return folder;
+    }
+
+    /**
+     * Creates a new, empty section folder.
+     *
+     * @return The new section
+     */
+    private static File newSection() {
+        File section = new File();
+        section.type = "folder";
+        return section;
+    }
+
+    /**
+     * Parses a table row on a resources page and adds it to the specified container.
+     * Folders are only added as placeholders, their contents have to be fetched
+     * separately.
+     *
+     * @param html The page html
+     * @param start The start index of the row
+     * @param end The end index of the row
+     * @param container The file to add the parsed file to
+     * @return The name of the section
+     */
+    public static String parseResourceRow(CharSequence html, int start, int end, File container) {
+        int i = expect(html, RESOURCE_CELL, start, end) + RESOURCE_CELL.length();
+        int j = expect(html, "</td>", i, end);
+        String sectionName = html.subSequence(i, j).toString();
+
+        File file = new File();
+
+        i = expect(html, "href=\"", j, end) + 6;
+        j = expect(html, "\"", i, end);
+        file.url = html.subSequence(i, j).toString();
+
+        i = expect(html, "src=\"", j, end) + 5;
+        j = expect(html, "\"", i, end);
+        file.setTypeFromImageUrl(html.subSequence(i, j).toString());
+
+        i = expect(html, "/>", j, end) + 3; // There's a space after '/>'
+        j = expect(html, "</a>", i, end);
+        file.name = html.subSequence(i, j).toString().replace("&amp;", "&");
+
+        i = indexOf(html, DESCRIPTION, j, end);
+        if(i != -1) {
+            j = expect(html, "</div>", i, end) + 6;
+            // Descriptions are rich text and rare, the XML parser handles their formatting
+            file.description = XML.getParser(html.subSequence(i, j).toString().replace("<br>", "\n"), XMLParser.HTML).next().getText();
+        }
+
+        container.add(file);
+        return sectionName;
+    }
+
+    /**
+     * Parses a table row on a tasks or tests page and adds it to the specified container.
+     *
+     * @param html The page html
+     * @param start The start index of the row
+     * @param end The end index of the row
+     * @param container The file to add the parsed file to
+     * @param type The type for the parsed file (-> task or test)
+     * @return The name of the section
+     */
+    public static String parseTaskRow(CharSequence html, int start, int end, File container, String type) {
+        int i = expect(html, ";\">", start, end) + 3;
+        int j = expect(html, "</td>", i, end);
+        String sectionName = html.subSequence(i, j).toString();
+
+        File file = new File();
+        file.type = type;
+
+        i = expect(html, "href=\"", j, end) + 6;
+        j = expect(html, "\"", i, end);
+        file.url = html.subSequence(i, j).toString();
+        if(!file.url.startsWith("http"))
+            file.url = MoodleClient.BASE_URL + "/" + file.url;
+
+        i = expect(html, "\">", j, end) + 2;
+        j = expect(html, "</a>", i, end);
+        file.name = html.subSequence(i, j).toString().replace("&amp;", "&");
+
+        i = expect(html, ";\">", j, end) + 3;
+        j = expect(html, "</td>", i, end);
+        file.deadline = parseTime(html.subSequence(i, j).toString());
+
+        container.add(file);
+        return sectionName;
+    }
+
+    /**
+     * Parses the file tree of a folder page. The tree is a nested list where each list
+     * item is either a file, consisting of a link with an icon and the filename, or a
+     * folder, consisting of the folder name followed by a nested list.
+     *
+     * @param name The name for the produced file tree
+     * @param url The url of the folder
+     * @param html The html of the folder page
+     * @return The parsed file tree
+     */
+    public static File parseFolder(String name, String url, CharSequence html) {
+        int i = expect(html, FOLDER_TREE_START, 0, html.length()) + FOLDER_TREE_START.length();
+        int end = html.length();
+
+        Deque<Item> items = new ArrayDeque<>();
+        File root = null;
+        int lists = 0;
+
+        while(i < end) {
+            int tag = indexOf(html, "<", i, end);
+            if(tag == -1) break;
+            Item current = items.peek();
+            if(current != null && !current.nested && tag > i)
+                current.text.append(html, i, tag);
+
+            int tagEnd = expect(html, ">", tag, end);
+            if(startsWith(html, tag, "<ul")) {
+                lists++;
+                if(current != null) current.nested = true;
+            }
+            else if(startsWith(html, tag, "</ul")) {
+                if(--lists == 0) break;
+            }
+            else if(startsWith(html, tag, "<li")) {
+                items.push(new Item());
+            }
+            else if(startsWith(html, tag, "</li")) {
+                Item item = items.pop();
+                File file = item.toFile();
+                if(items.isEmpty()) {
+                    if(root == null) root = file;
+                }
+                else items.peek().file.add(file);
+            }
+            else if(current != null && !current.nested) {
+                if(current.file.url == null && startsWith(html, tag, "<a "))
+                    current.file.url = attribute(html, tag, tagEnd, "href");
+                else if(current.icon == null && startsWith(html, tag, "<img "))
+                    current.icon = attribute(html, tag, tagEnd, "src");
+            }
+            i = tagEnd + 1;
+        }
+
+        if(root == null) throw new IllegalStateException("No file tree found on folder page " + url);
+        root.name = name;
+        root.url = url;
+        return root;
+    }
+
+    /**
+     * Parses the timestamp from the given date string.
+     *
+     * @param time The date string, in the format DAY_W, DAY. MONTH YEAR, HOUR:MINUTE
+     * @return The corresponding time stamp
+     */
+    public static long parseTime(String time) {
+        if(time.equals("-")) return -1;
+        try {
+            return DATE_FORMAT.get().parse(time).getTime();
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // ---------------------------------------------------
+
+    /**
+     * Returns the index of the given token in the specified range of the given string.
+     *
+     * @param s The string to search in
+     * @param token The token to search for
+     * @param from The start index of the range, inclusive
+     * @param to The end index of the range, exclusive
+     * @return The index of the token, or -1 if it is not fully contained in the range
+     */
+    static int indexOf(CharSequence s, String token, int from, int to) {
+        char first = token.charAt(0);
+        int last = to - token.length();
+        outer: for(int i = Math.max(from, 0); i <= last; i++) {
+            if(s.charAt(i) != first) continue;
+            for(int j = 1; j < token.length(); j++)
+                if(s.charAt(i + j) != token.charAt(j)) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the given token in the specified range of the given string,
+     * which is expected to be present.
+     *
+     * @param s The string to search in
+     * @param token The token to search for
+     * @param from The start index of the range, inclusive
+     * @param to The end index of the range, exclusive
+     * @return The index of the token
+     * @throws IllegalStateException If the token is not present
+     */
+    private static int expect(CharSequence s, String token, int from, int to) {
+        int index = indexOf(s, token, from, to);
+        if(index == -1) throw new IllegalStateException("Unexpected page format, missing '" + token + "'");
+        return index;
+    }
+
+    /**
+     * Returns whether the given string contains the given prefix at the specified index.
+     *
+     * @param s The string to test
+     * @param index The index to test at
+     * @param prefix The prefix to test for
+     * @return Whether the prefix is present at that index
+     */
+    private static boolean startsWith(CharSequence s, int index, String prefix) {
+        if(index + prefix.length() > s.length()) return false;
+        for(int i = 0; i < prefix.length(); i++)
+            if(s.charAt(index + i) != prefix.charAt(i)) return false;
+        return true;
+    }
+
+    /**
+     * Returns the value of the given attribute of the tag in the specified range.
+     *
+     * @param s The page html
+     * @param tagStart The index of the '<' of the tag
+     * @param tagEnd The index of the '>' of the tag
+     * @param name The name of the attribute
+     * @return The decoded attribute value, or {@code null} if not present
+     */
+    private static String attribute(CharSequence s, int tagStart, int tagEnd, String name) {
+        int i = indexOf(s, " " + name + "=\"", tagStart, tagEnd);
+        if(i == -1) return null;
+        i += name.length() + 3;
+        int j = indexOf(s, "\"", i, tagEnd);
+        return j == -1 ? null : decode(s, i, j);
+    }
+
+    /**
+     * Decodes the xml character references in the given range of the string.
+     *
+     * @param s The string to decode
+     * @param start The start index, inclusive
+     * @param end The end index, exclusive
+     * @return The decoded string
+     */
+    private static String decode(CharSequence s, int start, int end) {
+        int amp = indexOf(s, "&", start, end);
+        if(amp == -1) return s.subSequence(start, end).toString();
+
+        StringBuilder str = new StringBuilder(end - start);
+        str.append(s, start, amp);
+        for(int i = amp; i < end; i++) {
+            char c = s.charAt(i);
+            int semicolon;
+            if(c != '&' || (semicolon = indexOf(s, ";", i, Math.min(end, i + 10))) == -1) {
+                str.append(c);
+                continue;
+            }
+            String entity = s.subSequence(i + 1, semicolon).toString();
+            String decoded = switch(entity) {
+                case "amp" -> "&";
+                case "lt" -> "<";
+                case "gt" -> ">";
+                case "quot" -> "\"";
+                case "apos" -> "'";
+                default -> {
+                    try {
+                        if(entity.startsWith("#x")) yield Character.toString(Integer.parseInt(entity.substring(2), 16));
+                        if(entity.startsWith("#")) yield Character.toString(Integer.parseInt(entity.substring(1)));
+                    } catch(IllegalArgumentException ignored) { }
+                    yield null;
+                }
+            };
+            if(decoded == null) str.append(c);
+            else {
+                str.append(decoded);
+                i = semicolon;
+            }
+        }
+        return str.toString();
+    }
+
+
+    /**
+     * A list item of a folder tree that is being parsed.
+     */
+    private static final class Item {
+
+        /**
+         * The parsed file.
+         */
+        final File file = new File();
+        /**
+         * The text content of the item, excluding nested items.
+         */
+        final StringBuilder text = new StringBuilder();
+        /**
+         * The url of the icon of the item.
+         */
+        String icon = null;
+        /**
+         * Whether the item contains a nested list, making it a folder.
+         */
+        boolean nested = false;
+
+        /**
+         * Completes the file of this item.
+         *
+         * @return The parsed file
+         */
+        File toFile() {
+            file.name = decode(text, 0, text.length()).strip();
+            if(nested) {
+                file.type = "folder";
+                file.url = null;
+            }
+            else if(icon != null) file.setTypeFromImageUrl(icon);
+            return file;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package de.rwth.discord.moodle;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.github.rccookie.json.JsonDeserialization;
+import com.github.rccookie.json.JsonElement;
+import com.github.rccookie.json.JsonObject;
+import com.github.rccookie.json.JsonSerializable;
+
+/**
+ * A message about some files of a course that should be sent to discord.
+ */
+public final class Notification implements JsonSerializable {
+
+    // Initialize json deserialization
+    static {
+        JsonDeserialization.register(Notification.class, json -> new Notification(
+                json.get("key").asString(),
+                json.get("target").toOptional().map(JsonElement::asLong).orElse(0L),
+                new Course(json.get("course").asString(), json.get("courseId").asInt()),
+                List.of(json.get("files").as(File[].class)),
+                json.get("descSing").asString(),
+                json.get("descPlural").asString(),
+                json.get("uploadFiles").asBool(),
+                json.get("reminder").toOptional().map(JsonElement::asBool).orElse(false),
+                json.get("created").asLong()
+        ));
+    }
+
+    /**
+     * Identifies the event that the notification is about. Notifications with the same
+     * key are only sent once.
+     */
+    public final String key;
+    /**
+     * The id of the channel to send the notification to, 0 for notifications stored
+     * before there were multiple targets.
+     */
+    public final long target;
+    /**
+     * The course that the files were found in.
+     */
+    public final Course course;
+    /**
+     * The files to report (not as file tree, just the files themselves).
+     */
+    public final List<File> files;
+    /**
+     * The description of the event, in singular.
+     */
+    public final String descSing;
+    /**
+     * The description of the event, in plural.
+     */
+    public final String descPlural;
+    /**
+     * Whether the files should be attached if possible.
+     */
+    public final boolean uploadFiles;
+    /**
+     * Whether the notification reminds of a deadline. Reminders are never delayed until
+     * the daily digest.
+     */
+    public final boolean reminder;
+    /**
+     * The time when the notification was created.
+     */
+    public final long created;
+
+    /**
+     * Creates a new notification.
+     *
+     * @param key Identifies the event that the notification is about
+     * @param target The id of the channel to send the notification to
+     * @param course The course that the files were found in
+     * @param files The files to report
+     * @param descSing The description of the event, in singular
+     * @param descPlural The description of the event, in plural
+     * @param uploadFiles Whether the files should be attached if possible
+     * @param reminder Whether the notification reminds of a deadline
+     */
+    public Notification(String key, long target, Course course, Collection<File> files, String descSing, String descPlural, boolean uploadFiles, boolean reminder) {
+        this(key, target, course, files, descSing, descPlural, uploadFiles, reminder, System.currentTimeMillis());
+    }
+
+    private Notification(String key, long target, Course course, Collection<File> files, String descSing, String descPlural, boolean uploadFiles, boolean reminder, long created) {
+        this.key = key;
+        this.target = target;
+        this.course = course;
+        this.files = List.copyOf(files);
+        this.descSing = descSing;
+        this.descPlural = descPlural;
+        this.uploadFiles = uploadFiles;
+        this.reminder = reminder;
+        this.created = created;
+    }
+
+    /**
+     * Returns a copy of this notification for the given target, with the target appended
+     * to the key like for new notifications. Used for notifications stored before there
+     * were multiple targets.
+     *
+     * @param target The id of the channel to send the notification to
+     * @return The notification for that target
+     */
+    public Notification withTarget(long target) {
+        return new Notification(key(key, target), target, course, files, descSing, descPlural, uploadFiles, reminder, created);
+    }
+
+    @Override
+    public String toString() {
+        return course.name + ": " + files.size() + (files.size() == 1 ? " file" : " files") + " to " + target;
+    }
+
+    @Override
+    public Object toJson() {
+        return new JsonObject(
+                "key", key,
+                "target", target,
+                "course", course.name,
+                "courseId", course.id,
+                "files", files,
+                "descSing", descSing,
+                "descPlural", descPlural,
+                "uploadFiles", uploadFiles,
+                "reminder", reminder,
+                "created", created
+        );
+    }
+
+    /**
+     * Returns the key of the notification about the given event for the given target.
+     *
+     * @param event Identifies the event
+     * @param target The id of the channel that the notification is sent to
+     * @return The key of the notification
+     */
+    public static String key(String event, long target) {
+        return event + "@" + target;
+    }
+
+    /**
+     * Returns whether the given key was created before there were multiple targets, so
+     * that it does not contain the target.
+     *
+     * @param key The key to test
+     * @return Whether the key is a legacy key
+     */
+    public static boolean isLegacyKey(String key) {
+        return key.indexOf('@') == -1;
+    }
+}
@@ -0,0 +1,491 @@
+package de.rwth.discord.moodle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import com.github.rccookie.json.Json;
+import com.github.rccookie.json.JsonElement;
+import com.github.rccookie.json.JsonObject;
+import com.github.rccookie.util.Console;
+
+/**
+ * Durable store of the notifications that have not been sent yet. Every change is
+ * appended to a log file as a single json line, and the log is synced to disk before a
+ * new notification is accepted. Writes that arrive while the disk is busy are written
+ * and synced together. On startup, the log is replayed and rewritten, and it is also
+ * rewritten whenever it grew too large.
+ * <p>Each notification has a key identifying its event. Keys of sent notifications are
+ * remembered, so a notification for the same event is not accepted again, for example
+ * when a check is repeated after a crash before the new files were stored.</p>
+ * <p>Accepted notifications are handed to a target, usually a {@link NotificationQueue},
+ * and stay in the outbox until they are reported as sent. Notifications that should
+ * only be sent later, for example with the daily digest, are kept in the outbox and
+ * handed over once their hand-over time is reached. Failed notifications are
+ * retried with exponential backoff, and notifications that were neither sent nor failed
+ * within {@link #LEASE} (for example because they were dropped from the queue) are
+ * handed to the target again. Notifications that are being sent are not handed over
+ * again, no matter how long sending takes, until the outcome is reported.</p>
+ */
+public class NotificationOutbox {
+
+    /**
+     * Time after which a notification that was handed to the target is handed over
+     * again, in milliseconds.
+     */
+    private static final long LEASE = 15 * 60 * 1000L;
+    /**
+     * Delay before retrying a failed notification for the first time, in milliseconds.
+     */
+    private static final long MIN_RETRY_DELAY = 30 * 1000L;
+    /**
+     * Maximum delay before retrying a failed notification, in milliseconds.
+     */
+    private static final long MAX_RETRY_DELAY = 30 * 60 * 1000L;
+    /**
+     * Interval in which notifications due for a retry are searched, in milliseconds.
+     */
+    private static final long RETRY_CHECK_INTERVAL = 30 * 1000L;
+    /**
+     * Number of keys of sent notifications that are remembered.
+     */
+    private static final int MAX_SENT_KEYS = 10000;
+    /**
+     * Number of records appended to the log above the live records after which the
+     * log is rewritten.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /**
+     * The log file.
+     */
+    private final Path file;
+    /**
+     * The channel that notifications stored before there were multiple targets belong to.
+     */
+    private final long legacyTarget;
+    /**
+     * The notifications that have not been sent yet, by key, in the order they were added.
+     */
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    /**
+     * The keys of the most recently sent notifications, oldest first.
+     */
+    private final Set<String> sent = new LinkedHashSet<>();
+    /**
+     * Records waiting to be appended to the log.
+     */
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    /**
+     * Channel appending to the log. Only used by the writer thread after creation.
+     */
+    private FileChannel channel;
+    /**
+     * Number of records in the log.
+     */
+    private int records = 0;
+    /**
+     * Number of records in the log after it was last rewritten.
+     */
+    private int liveRecords = 0;
+    /**
+     * The target to hand notifications to, {@code null} until
+     * {@link #start(Consumer, ToLongFunction)} was called.
+     */
+    private Consumer<Notification> target = null;
+    /**
+     * Returns the time from which on a notification should be handed to the target,
+     * {@code null} until {@link #start(Consumer, ToLongFunction)} was called.
+     */
+    private ToLongFunction<Notification> handOverTime = null;
+
+
+    /**
+     * Creates a new outbox backed by the given log file, loading the notifications that
+     * were not sent yet from it, if present. Notifications and keys stored before there
+     * were multiple targets are assigned to the given target, so that they still prevent
+     * notifications for the same event from being sent to it again.
+     *
+     * @param file The log file
+     * @param legacyTarget The id of the channel that notifications without target belong to
+     */
+    public NotificationOutbox(Path file, long legacyTarget) {
+        this.file = file;
+        this.legacyTarget = legacyTarget;
+        load();
+        compact();
+        if(channel == null) throw new UncheckedIOException(new IOException("Cannot open notification outbox: " + file));
+
+        Thread writer = new Thread(this::runWriter, "Outbox writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Starts handing notifications to the given target once their hand-over time is
+     * reached, including those loaded from disk, and starts retrying failed notifications.
+     *
+     * @param target The target to hand notifications to
+     * @param handOverTime Returns the time from which on a notification should be handed
+     *                     to the target
+     */
+    public void start(Consumer<Notification> target, ToLongFunction<Notification> handOverTime) {
+        synchronized(this) {
+            this.target = target;
+            this.handOverTime = handOverTime;
+            // Loaded or added before the start
+            for(Entry entry : pending.values())
+                if(entry.nextAttempt == 0) entry.nextAttempt = handOverTime.applyAsLong(entry.notification);
+        }
+        ScheduledExecutorService retry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Outbox retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retry.scheduleWithFixedDelay(this::retry, 0, RETRY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the given notification to the outbox and waits until it is stored on disk,
+     * then hands it to the target if its hand-over time is reached. Otherwise, it is
+     * handed over later by the retry thread. If a notification with the same key is
+     * pending or was sent already, the notification is ignored.
+     *
+     * @param notification The notification to add
+     * @return Whether the notification was added
+     * @throws UncheckedIOException If the notification could not be stored
+     */
+    public boolean add(Notification notification) {
+        Entry entry = new Entry(notification);
+        synchronized(this) {
+            if(pending.containsKey(notification.key) || sent.contains(notification.key)) {
+                Console.mapDebug("Duplicate notification", notification);
+                return false;
+            }
+            // Not handed to the target before it is stored
+            entry.nextAttempt = Long.MAX_VALUE;
+            pending.put(notification.key, entry);
+        }
+        try {
+            write(new JsonObject("type", "add", "notification", notification)).join();
+        } catch(CompletionException e) {
+            synchronized(this) {
+                pending.remove(notification.key);
+            }
+            if(e.getCause() instanceof UncheckedIOException cause) throw cause;
+            throw e;
+        }
+
+        Consumer<Notification> target = null;
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            if(this.target == null) entry.nextAttempt = 0;
+            else if((entry.nextAttempt = handOverTime.applyAsLong(notification)) <= now) {
+                target = this.target;
+                entry.nextAttempt = now + LEASE;
+            }
+        }
+        if(target != null) target.accept(notification);
+        return true;
+    }
+
+    /**
+     * Marks the notification with the given key as being sent, so that it is not handed
+     * to the target again until the outcome is {@linkplain #complete(Notification, Throwable)
+     * reported}.
+     *
+     * @param key The key of the notification
+     * @return Whether the notification is pending and was not being sent already
+     */
+    public synchronized boolean beginSending(String key) {
+        Entry entry = pending.get(key);
+        if(entry == null || entry.sending) return false;
+        entry.sending = true;
+        return true;
+    }
+
+    /**
+     * Returns the number of notifications that have not been sent yet.
+     *
+     * @return The number of pending notifications
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Reports the outcome of sending the given notification. A sent notification is removed
+     * from the outbox, a failed one is scheduled for a retry.
+     *
+     * @param notification The notification that was attempted to send
+     * @param error The reason why sending failed, or {@code null} if it was sent
+     */
+    public void complete(Notification notification, Throwable error) {
+        synchronized(this) {
+            Entry entry = pending.get(notification.key);
+            if(entry == null) return;
+            entry.sending = false;
+            if(error != null) {
+                entry.attempts++;
+                long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(entry.attempts - 1, 20));
+                delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                entry.nextAttempt = System.currentTimeMillis() + delay;
+                Console.warn("Retrying notification for", notification, "in", delay / 1000 + "s");
+                return;
+            }
+            pending.remove(notification.key);
+            remember(notification.key);
+        }
+        write(new JsonObject("type", "sent", "key", notification.key));
+    }
+
+    /**
+     * Adds the given key to the keys of sent notifications, forgetting the oldest key
+     * if there are too many. Must be called while holding the lock.
+     *
+     * @param key The key of the sent notification
+     */
+    private void remember(String key) {
+        sent.add(key);
+        if(sent.size() > MAX_SENT_KEYS) {
+            Iterator<String> it = sent.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Hands all notifications to the target that are due for a retry.
+     */
+    private void retry() {
+        List<Notification> due = new ArrayList<>();
+        Consumer<Notification> target;
+        synchronized(this) {
+            target = this.target;
+            long now = System.currentTimeMillis();
+            for(Entry entry : pending.values()) {
+                if(entry.sending || entry.nextAttempt > now) continue;
+                entry.nextAttempt = now + LEASE;
+                due.add(entry.notification);
+            }
+        }
+        for(Notification notification : due) {
+            try {
+                target.accept(notification);
+            } catch(Exception e) {
+                Console.error("Failed to retry notification for", notification);
+                Console.error(e);
+            }
+        }
+    }
+
+    /**
+     * Queues the given record to be appended to the log.
+     *
+     * @param record The record to write
+     * @return A future that completes once the record is synced to disk
+     */
+    private CompletableFuture<Void> write(JsonObject record) {
+        Write write = new Write(Json.toString(record) + "\n");
+        writes.add(write);
+        return write.future;
+    }
+
+    /**
+     * Appends the queued records to the log, syncing once per batch of records.
+     */
+    private void runWriter() {
+        List<Write> batch = new ArrayList<>();
+        while(true) {
+            try {
+                batch.add(writes.take());
+            } catch(InterruptedException e) {
+                return;
+            }
+            writes.drainTo(batch);
+
+            StringBuilder lines = new StringBuilder();
+            for(Write write : batch) lines.append(write.line);
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                if(channel == null && (channel = open()) == null)
+                    throw new IOException("Notification outbox is not open");
+                while(buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+                records += batch.size();
+                batch.forEach(w -> w.future.complete(null));
+            } catch(IOException e) {
+                Console.error("Failed to write notification outbox");
+                Console.error(e);
+                UncheckedIOException error = new UncheckedIOException(e);
+                batch.forEach(w -> w.future.completeExceptionally(error));
+            }
+            batch.clear();
+
+            if(records > liveRecords + COMPACT_THRESHOLD) compact();
+        }
+    }
+
+    /**
+     * Loads the pending notifications and the keys of sent notifications from the log.
+     * Records that cannot be read, usually an incomplete last record after a crash,
+     * are skipped.
+     */
+    private synchronized void load() {
+        if(!Files.exists(file)) return;
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch(IOException e) {
+            Console.warn("Failed to load notification outbox:", e);
+            return;
+        }
+        for(String line : lines) {
+            if(line.isBlank()) continue;
+            try {
+                JsonElement record = Json.parse(line);
+                if(record.get("type").asString().equals("add")) {
+                    Notification notification = record.get("notification").as(Notification.class);
+                    if(notification.target == 0 && Notification.isLegacyKey(notification.key))
+                        notification = notification.withTarget(legacyTarget);
+                    if(!sent.contains(notification.key))
+                        pending.putIfAbsent(notification.key, new Entry(notification));
+                }
+                else {
+                    String key = record.get("key").asString();
+                    if(Notification.isLegacyKey(key)) key = Notification.key(key, legacyTarget);
+                    pending.remove(key);
+                    remember(key);
+                }
+            } catch(Exception e) {
+                Console.warn("Skipping unreadable notification outbox record:", e);
+            }
+        }
+        if(!pending.isEmpty())
+            Console.info(pending.size() + " notifications pending from previous run");
+    }
+
+    /**
+     * Rewrites the log to contain only the pending notifications and the remembered keys
+     * of sent notifications. The new log is first written to a temporary file, which then
+     * replaces the actual log. Must only be called by the writer thread, or before it
+     * was started.
+     */
+    private void compact() {
+        StringBuilder lines = new StringBuilder();
+        int count;
+        synchronized(this) {
+            for(String key : sent)
+                lines.append(Json.toString(new JsonObject("type", "sent", "key", key))).append('\n');
+            for(Entry entry : pending.values())
+                lines.append(Json.toString(new JsonObject("type", "add", "notification", entry.notification))).append('\n');
+            count = sent.size() + pending.size();
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while(buffer.hasRemaining()) out.write(buffer);
+            out.force(false);
+        } catch(IOException e) {
+            Console.warn("Failed to compact notification outbox:", e);
+            if(channel == null) channel = open();
+            return;
+        }
+
+        try {
+            if(channel != null) channel.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = liveRecords = count;
+        } catch(IOException e) {
+            Console.warn("Failed to compact notification outbox:", e);
+        }
+        channel = open();
+    }
+
+    /**
+     * Opens the log for appending.
+     *
+     * @return The channel, or {@code null} if the log could not be opened
+     */
+    private FileChannel open() {
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch(IOException e) {
+            Console.error("Failed to open notification outbox");
+            Console.error(e);
+            return null;
+        }
+    }
+
+
+    /**
+     * A pending notification.
+     */
+    private static final class Entry {
+
+        /**
+         * The notification.
+         */
+        final Notification notification;
+        /**
+         * The number of failed attempts to send the notification.
+         */
+        int attempts = 0;
+        /**
+         * Time from which on the notification should be handed to the target (again),
+         * 0 if not known before the outbox is started.
+         */
+        long nextAttempt = 0;
+        /**
+         * Whether the notification is being sent.
+         */
+        boolean sending = false;
+
+        Entry(Notification notification) {
+            this.notification = notification;
+        }
+    }
+
+    /**
+     * A record waiting to be appended to the log.
+     */
+    private static final class Write {
+
+        /**
+         * The record, as json line.
+         */
+        final String line;
+        /**
+         * Completed once the record is synced to disk.
+         */
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Write(String line) {
+            this.line = line;
+        }
+    }
+}
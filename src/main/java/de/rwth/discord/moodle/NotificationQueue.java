@@ -0,0 +1,335 @@
+package de.rwth.discord.moodle;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import com.github.rccookie.util.Console;
+
+/**
+ * Bounded queue of notifications that are sent to discord by a dedicated sender thread,
+ * so that slow uploads and discord rate limits don't delay the checks of the courses.
+ * If the queue is full, the {@link OverflowPolicy} decides whether the producer waits or
+ * a notification is dropped.
+ * <p>The sender thread takes the notifications from the queue and holds them until they
+ * are due. Once a notification is due, it is sent together with the other held
+ * notifications for the same target that are due within the coalescing window, up to
+ * {@link #MAX_BATCH_SIZE} at once, so that notifications of several courses found at
+ * about the same time are sent as one message. The batches are sent one after another,
+ * and notifications with the same key are only held once. At most as many notifications
+ * as the queue's capacity are held, beyond that the overflow policy applies to the held
+ * notifications as well.</p>
+ */
+public class NotificationQueue {
+
+    /**
+     * Maximum time to wait for a single notification to be sent, in seconds.
+     */
+    private static final long SEND_TIMEOUT = 10 * 60;
+    /**
+     * Maximum number of notifications sent together.
+     */
+    private static final int MAX_BATCH_SIZE = 10;
+
+    /**
+     * The pending notifications.
+     */
+    private final BlockingQueue<Notification> queue;
+    /**
+     * The maximum number of pending and of held notifications.
+     */
+    private final int capacity;
+    /**
+     * What to do when the queue is full.
+     */
+    private final OverflowPolicy overflow;
+    /**
+     * Returns the time from which on a notification should be sent.
+     */
+    private final ToLongFunction<Notification> dueTime;
+    /**
+     * Time after a notification is due within which other notifications that are due
+     * are sent together with it, in milliseconds.
+     */
+    private final long window;
+    /**
+     * Starts sending a batch of notifications, the returned future completes once they
+     * were sent.
+     */
+    private final Function<List<Notification>, CompletableFuture<?>> sender;
+    /**
+     * The notifications taken from the queue that were not sent yet, by key, in the
+     * order they were added. Only used by the sender thread.
+     */
+    private final Map<String, Notification> held = new LinkedHashMap<>();
+    /**
+     * The number of held notifications.
+     */
+    private volatile int heldCount = 0;
+
+    /**
+     * Total number of notifications added.
+     */
+    private final AtomicLong enqueued = new AtomicLong();
+    /**
+     * Total number of notifications sent successfully.
+     */
+    private final AtomicLong sent = new AtomicLong();
+    /**
+     * Total number of batches sent successfully.
+     */
+    private final AtomicLong batches = new AtomicLong();
+    /**
+     * Total number of notifications that failed to send.
+     */
+    private final AtomicLong failed = new AtomicLong();
+    /**
+     * Total number of notifications dropped because the queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Total time from adding a notification until it was sent, in milliseconds.
+     */
+    private final AtomicLong totalLatency = new AtomicLong();
+    /**
+     * Time when the sender was started, in nanoseconds.
+     */
+    private final long startTime = System.nanoTime();
+
+
+    /**
+     * Creates a new notification queue and starts its sender thread.
+     *
+     * @param capacity The maximum number of pending notifications
+     * @param overflow What to do when the queue is full
+     * @param dueTime Returns the time from which on a notification should be sent
+     * @param window Time after a notification is due within which other due notifications
+     *               are sent together with it, in milliseconds
+     * @param sender Starts sending a batch of notifications, the returned future should
+     *               complete once they were sent
+     */
+    public NotificationQueue(int capacity, OverflowPolicy overflow, ToLongFunction<Notification> dueTime, long window, Function<List<Notification>, CompletableFuture<?>> sender) {
+        if(capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        if(window < 0) throw new IllegalArgumentException("Window must not be negative: " + window);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.dueTime = dueTime;
+        this.window = window;
+        this.sender = sender;
+
+        Thread thread = new Thread(this::runSender, "Notification sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the given notification to the queue. Returns immediately, unless the queue is
+     * full and the overflow policy is {@link OverflowPolicy#BLOCK}.
+     *
+     * @param notification The notification to send
+     * @return Whether the notification was added
+     */
+    public boolean add(Notification notification) {
+        enqueued.incrementAndGet();
+        switch(overflow) {
+            case BLOCK -> {
+                try {
+                    if(!queue.offer(notification)) {
+                        Console.warn("Notification queue full, waiting");
+                        queue.put(notification);
+                    }
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(notification);
+                    return false;
+                }
+            }
+            case DROP_NEWEST -> {
+                if(!queue.offer(notification)) {
+                    drop(notification);
+                    return false;
+                }
+            }
+            case DROP_OLDEST -> {
+                while(!queue.offer(notification)) {
+                    Notification oldest = queue.poll();
+                    if(oldest != null) drop(oldest);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that the given notification was dropped.
+     *
+     * @param notification The dropped notification
+     */
+    private void drop(Notification notification) {
+        dropped.incrementAndGet();
+        Console.warn("Notification queue full, dropped notification for", notification);
+    }
+
+    /**
+     * Returns the number of pending notifications, including those held until they are due.
+     *
+     * @return The current queue depth
+     */
+    public int size() {
+        return queue.size() + heldCount;
+    }
+
+    /**
+     * Returns a summary of the notifications sent so far.
+     *
+     * @return The queue statistics
+     */
+    public String getStats() {
+        long sent = this.sent.get();
+        double minutes = (System.nanoTime() - startTime) / 6e10;
+        return String.format(Locale.ROOT, "%d pending, %d held, %d sent in %d batches (%.2f/min, avg %d ms), %d failed, %d dropped",
+                queue.size(), heldCount, sent, batches.get(), sent / minutes, sent == 0 ? 0 : totalLatency.get() / sent, failed.get(), dropped.get());
+    }
+
+    /**
+     * Takes the queued notifications and sends them in batches once they are due.
+     */
+    private void runSender() {
+        while(true) {
+            List<Notification> batch;
+            try {
+                batch = nextBatch();
+            } catch(InterruptedException e) {
+                return;
+            }
+            try {
+                sender.apply(batch).get(SEND_TIMEOUT, TimeUnit.SECONDS);
+                long now = System.currentTimeMillis();
+                sent.addAndGet(batch.size());
+                batches.incrementAndGet();
+                for(Notification notification : batch)
+                    totalLatency.addAndGet(now - notification.created);
+            } catch(InterruptedException e) {
+                return;
+            } catch(ExecutionException | TimeoutException | RuntimeException e) {
+                failed.addAndGet(batch.size());
+                Console.error("Failed to send notifications for", batch);
+                Console.error(e instanceof ExecutionException ? e.getCause() : e);
+            }
+            Console.mapDebug("Notification queue", getStats());
+        }
+    }
+
+    /**
+     * Waits until a held notification is due and removes it from the held notifications,
+     * together with the other held notifications for the same target due within the window.
+     *
+     * @return The notifications to send
+     */
+    private List<Notification> nextBatch() throws InterruptedException {
+        while(true) {
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            long target = 0;
+            for(Notification notification : held.values()) {
+                long due = dueTime.applyAsLong(notification);
+                if(due < next) {
+                    next = due;
+                    target = notification.target;
+                }
+            }
+
+            if(next <= now) {
+                List<Notification> batch = new ArrayList<>();
+                for(Iterator<Notification> it = held.values().iterator(); it.hasNext() && batch.size() < MAX_BATCH_SIZE;) {
+                    Notification notification = it.next();
+                    if(notification.target != target || dueTime.applyAsLong(notification) > next + window) continue;
+                    batch.add(notification);
+                    it.remove();
+                }
+                heldCount = held.size();
+                return batch;
+            }
+
+            if(held.size() >= capacity && overflow == OverflowPolicy.BLOCK) {
+                // Leave the notifications in the queue so that the producers wait
+                Thread.sleep(next - now);
+                continue;
+            }
+            Notification notification = next == Long.MAX_VALUE ? queue.take() : queue.poll(next - now, TimeUnit.MILLISECONDS);
+            if(notification == null) continue;
+            List<Notification> added = new ArrayList<>();
+            added.add(notification);
+            queue.drainTo(added, overflow == OverflowPolicy.BLOCK ? capacity - held.size() - 1 : Integer.MAX_VALUE);
+            for(Notification n : added)
+                hold(n);
+            heldCount = held.size();
+        }
+    }
+
+    /**
+     * Holds the given notification until it is due, unless one with the same key is held
+     * already. If the maximum number of notifications is held, the overflow policy decides
+     * which notification is dropped.
+     *
+     * @param notification The notification to hold
+     */
+    private void hold(Notification notification) {
+        if(held.containsKey(notification.key)) return;
+        if(held.size() >= capacity) {
+            if(overflow == OverflowPolicy.DROP_OLDEST) {
+                Iterator<Notification> oldest = held.values().iterator();
+                drop(oldest.next());
+                oldest.remove();
+            }
+            else {
+                drop(notification);
+                return;
+            }
+        }
+        held.put(notification.key, notification);
+    }
+
+
+    /**
+     * Behaviour of the queue when a notification is added while it is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until space is available.
+         */
+        BLOCK,
+        /**
+         * Drop the notification that was added.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest pending notification.
+         */
+        DROP_OLDEST;
+
+        /**
+         * Returns the policy with the given name, ignoring case and allowing dashes
+         * instead of underscores.
+         *
+         * @param name The name of the policy
+         * @return The policy with that name
+         */
+        public static OverflowPolicy parse(String name) {
+            return valueOf(name.strip().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+}
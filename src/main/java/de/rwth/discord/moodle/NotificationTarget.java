@@ -0,0 +1,78 @@
+package de.rwth.discord.moodle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * A channel that notifications are sent to, optionally only for some courses.
+ */
+public final class NotificationTarget {
+
+    /**
+     * The id of the channel.
+     */
+    public final long channel;
+    /**
+     * The ids of the courses to send notifications for, empty for all courses.
+     */
+    public final Set<Integer> courses;
+
+    /**
+     * Creates a new notification target.
+     *
+     * @param channel The id of the channel
+     * @param courses The ids of the courses to send notifications for, empty for all courses
+     */
+    public NotificationTarget(long channel, Set<Integer> courses) {
+        this.channel = channel;
+        this.courses = Set.copyOf(courses);
+    }
+
+    /**
+     * Returns whether notifications for the given course should be sent to this target.
+     *
+     * @param course The id of the course
+     * @return Whether the target receives notifications of the course
+     */
+    public boolean accepts(int course) {
+        return courses.isEmpty() || courses.contains(course);
+    }
+
+    @Override
+    public String toString() {
+        return channel + (courses.isEmpty() ? "" : courses.stream().map(String::valueOf).collect(Collectors.joining(",", ":", "")));
+    }
+
+    /**
+     * Parses a list of targets separated by semicolons. Each target is the id of a channel,
+     * optionally followed by a colon and a comma separated list of course ids, for example
+     * {@code 123;456:1001,1002}.
+     *
+     * @param targets The targets to parse
+     * @return The parsed targets
+     * @throws IllegalArgumentException If the targets are malformed
+     */
+    public static List<NotificationTarget> parseAll(String targets) {
+        List<NotificationTarget> list = new ArrayList<>();
+        for(String target : targets.split(";")) {
+            if(target.isBlank()) continue;
+            String[] parts = target.strip().split(":", 2);
+            try {
+                long channel = Long.parseLong(parts[0].strip());
+                Set<Integer> courses = parts.length == 1 ? Set.of() : Arrays.stream(parts[1].split(","))
+                        .map(String::strip)
+                        .filter(c -> !c.isEmpty())
+                        .map(Integer::parseInt)
+                        .collect(Collectors.toSet());
+                list.add(new NotificationTarget(channel, courses));
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid notification target: " + target, e);
+            }
+        }
+        if(list.isEmpty()) throw new IllegalArgumentException("No notification target specified");
+        return list;
+    }
+}
@@ -0,0 +1,178 @@
+package de.rwth.discord.moodle;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Fetches moodle pages conditionally and caches their parsed results. If moodle
+ * answers with an ETag or Last-Modified header, subsequent requests are sent with
+ * If-None-Match / If-Modified-Since. Most moodle pages are generated dynamically
+ * and don't send any validators, so additionally the relevant slice of each page
+ * (for example the table body) is hashed, and the previously parsed result is
+ * reused if the hash did not change.
+ */
+public class PageCache {
+
+    /**
+     * The cache entries, by url.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+
+    /**
+     * Fetches the page at the given url. If the page did not change since the last
+     * fetch, the previously parsed file tree will be returned, otherwise the page will
+     * be parsed using the specified parser.
+     *
+     * @param url The url of the page to fetch
+     * @param sliceStart The string marking the start of the relevant part of the page
+     * @param sliceEnd The string marking the end of the relevant part of the page, searched
+     *                 for after the start
+     * @param parser The parser for the page, receiving the whole page html
+     * @return The fetched page
+     */
+    public Page fetch(String url, String sliceStart, String sliceEnd, Function<String, File> parser) {
+        HttpRequest.Builder request = MoodleClient.newRequest(url);
+        Entry entry = entries.get(url);
+        if(entry != null) {
+            if(entry.eTag != null) request.header("If-None-Match", entry.eTag);
+            if(entry.lastModified != null) request.header("If-Modified-Since", entry.lastModified);
+        }
+
+        HttpResponse<byte[]> response = MoodleClient.send(request, MoodleClient.ofBytes());
+        int bytes = response.body().length;
+        if(entry != null && response.statusCode() == 304)
+            return new Page(entry.file, false, bytes);
+
+        String data = new String(response.body(), StandardCharsets.UTF_8);
+        if(MoodleCookie.isLoginPage(data)) {
+            MoodleCookie.renew(response.request().headers().firstValue("Cookie").orElse(null));
+            response = MoodleClient.send(request, MoodleClient.ofBytes());
+            bytes += response.body().length;
+            data = new String(response.body(), StandardCharsets.UTF_8);
+            if(MoodleCookie.isLoginPage(data))
+                throw new IllegalStateException("Still not logged in after renewing the login cookie");
+        }
+        // Reported to the circuit breaker already when the response arrived
+        if(RequestGovernor.isMaintenancePage(data))
+            throw new IllegalStateException("Moodle is in maintenance");
+        byte[] hash = hash(slice(data, sliceStart, sliceEnd));
+        String eTag = response.headers().firstValue("ETag").orElse(null);
+        String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+
+        if(entry != null && Arrays.equals(entry.hash, hash)) {
+            entries.put(url, new Entry(eTag, lastModified, hash, entry.file));
+            return new Page(entry.file, false, bytes);
+        }
+
+        File file = parser.apply(data);
+        entries.put(url, new Entry(eTag, lastModified, hash, file));
+        return new Page(file, true, bytes);
+    }
+
+    /**
+     * Removes all cached pages except for the ones with the specified urls.
+     *
+     * @param urls The urls of the pages to keep
+     */
+    public void retainAll(Collection<String> urls) {
+        entries.keySet().retainAll(urls);
+    }
+
+    /**
+     * Returns the part of the given page between the given start and end marker.
+     * If the start marker is not present, an empty string will be returned. If the
+     * end marker is not present, everything after the start marker is returned.
+     *
+     * @param data The page html
+     * @param start The start marker
+     * @param end The end marker
+     * @return The slice of the page
+     */
+    static String slice(String data, String start, String end) {
+        int startIndex = data.indexOf(start);
+        if(startIndex == -1) return "";
+        startIndex += start.length();
+        int endIndex = data.indexOf(end, startIndex);
+        return endIndex == -1 ? data.substring(startIndex) : data.substring(startIndex, endIndex);
+    }
+
+    /**
+     * Computes the SHA-256 hash of the given string.
+     *
+     * @param data The string to hash
+     * @return The hash of the string
+     */
+    private static byte[] hash(String data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+        } catch(NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    /**
+     * Result of a page fetch.
+     */
+    public static final class Page {
+
+        /**
+         * The parsed file tree of the page. If the page was not modified, this is the
+         * same instance as returned by the previous fetch.
+         */
+        public final File file;
+        /**
+         * Whether the page was modified since the last fetch.
+         */
+        public final boolean modified;
+        /**
+         * The number of bytes received.
+         */
+        public final int bytes;
+
+        private Page(File file, boolean modified, int bytes) {
+            this.file = file;
+            this.modified = modified;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A cached page.
+     */
+    private static final class Entry {
+
+        /**
+         * The ETag of the page, if any.
+         */
+        final String eTag;
+        /**
+         * The Last-Modified date of the page, if any.
+         */
+        final String lastModified;
+        /**
+         * The hash of the relevant part of the page.
+         */
+        final byte[] hash;
+        /**
+         * The parsed file tree.
+         */
+        final File file;
+
+        Entry(String eTag, String lastModified, byte[] hash, File file) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package de.rwth.discord.moodle;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.rccookie.json.Json;
+import com.github.rccookie.json.JsonObject;
+import com.github.rccookie.util.Console;
+
+/**
+ * Keeps an adaptive polling interval for each course. Courses where new files were
+ * found are checked with the minimum interval, every check without new files increases
+ * the interval by {@link #BACKOFF_FACTOR}, up to the maximum interval. While a deadline
+ * of the course is less than {@link #DEADLINE_WINDOW} away, the interval is at most the
+ * default interval. The intervals are stored on disk, so they persist across restarts.
+ */
+public class PollingSchedule {
+
+    /**
+     * Factor by which the interval of a course increases after a check without new files.
+     */
+    private static final double BACKOFF_FACTOR = 1.5;
+    /**
+     * Time before a deadline from which on the course is checked at least with the
+     * default interval, in milliseconds.
+     */
+    private static final long DEADLINE_WINDOW = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The file to store the intervals in.
+     */
+    private final Path file;
+    /**
+     * The interval of courses without history, in seconds.
+     */
+    private final int defaultInterval;
+    /**
+     * The minimum interval, in seconds.
+     */
+    private final int minInterval;
+    /**
+     * The maximum interval, in seconds.
+     */
+    private final int maxInterval;
+    /**
+     * The current interval of each course, by course id, in seconds.
+     */
+    private final Map<Integer, Integer> intervals = new ConcurrentHashMap<>();
+
+
+    /**
+     * Creates a new polling schedule backed by the given file and loads the stored
+     * intervals from it, if present.
+     *
+     * @param file The file to store the intervals in
+     * @param defaultInterval The interval of courses without history, in seconds
+     * @param minInterval The minimum interval, in seconds
+     * @param maxInterval The maximum interval, in seconds
+     */
+    public PollingSchedule(Path file, int defaultInterval, int minInterval, int maxInterval) {
+        if(minInterval < 1 || minInterval > maxInterval)
+            throw new IllegalArgumentException("Invalid interval bounds: " + minInterval + " - " + maxInterval);
+        this.file = file;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.defaultInterval = clamp(defaultInterval);
+        load();
+    }
+
+    /**
+     * Returns the current polling interval of the given course.
+     *
+     * @param course The id of the course
+     * @return The interval, in seconds
+     */
+    public int getInterval(int course) {
+        return intervals.getOrDefault(course, defaultInterval);
+    }
+
+    /**
+     * Updates the interval of the given course after a check.
+     *
+     * @param course The id of the course
+     * @param foundNewFiles Whether the check found new files
+     * @param nextDeadline The next upcoming deadline in the course, or -1 if there is none
+     * @return The new interval, in seconds
+     */
+    public int update(int course, boolean foundNewFiles, long nextDeadline) {
+        int current = getInterval(course);
+        int interval = foundNewFiles ? minInterval : (int) Math.min(maxInterval, Math.ceil(current * BACKOFF_FACTOR));
+        if(nextDeadline != -1 && nextDeadline - System.currentTimeMillis() < DEADLINE_WINDOW)
+            interval = Math.min(interval, defaultInterval);
+        interval = clamp(interval);
+
+        if(interval != current) {
+            Console.mapDebug("Polling interval", course + ": " + current + "s -> " + interval + "s");
+            intervals.put(course, interval);
+            store();
+        }
+        return interval;
+    }
+
+    /**
+     * Clamps the given interval into the configured bounds.
+     *
+     * @param interval The interval to clamp
+     * @return The clamped interval
+     */
+    private int clamp(int interval) {
+        return Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    /**
+     * Loads the stored intervals from disk, if present.
+     */
+    private void load() {
+        if(!Files.exists(file)) return;
+        try {
+            JsonObject json = Json.load(file.toString()).asObject();
+            for(String id : json.keySet())
+                intervals.put(Integer.parseInt(id), clamp(json.getElement(id).as(Integer.class)));
+        } catch(Exception e) {
+            Console.warn("Failed to load polling intervals:", e);
+        }
+    }
+
+    /**
+     * Writes the intervals to disk.
+     */
+    private synchronized void store() {
+        JsonObject json = new JsonObject();
+        intervals.forEach((id, interval) -> json.put(id + "", interval));
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Json.store(json, temp.toFile());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(Exception e) {
+            Console.warn("Failed to store polling intervals:", e);
+        }
+    }
+}
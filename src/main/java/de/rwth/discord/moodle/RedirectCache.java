@@ -0,0 +1,224 @@
+package de.rwth.discord.moodle;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.rccookie.json.Json;
+import com.github.rccookie.json.JsonElement;
+import com.github.rccookie.json.JsonObject;
+import com.github.rccookie.util.Console;
+
+/**
+ * Persistent cache for the final urls of moodle files, which are the urls that the file
+ * urls redirect to. Entries expire after {@link #TTL} milliseconds, and at most
+ * {@link #MAX_SIZE} entries are kept, the least recently used ones are removed first.
+ * New entries are written to disk in the background after {@link #WRITE_DELAY}
+ * milliseconds, together with all other changes in that time, and on shutdown.
+ */
+public final class RedirectCache {
+
+    private RedirectCache() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Time after which a cached redirect expires, in milliseconds.
+     */
+    private static final long TTL = 24 * 60 * 60 * 1000L;
+    /**
+     * Maximum number of cached redirects.
+     */
+    private static final int MAX_SIZE = 5000;
+    /**
+     * Maximum number of redirects resolved concurrently.
+     */
+    private static final int PARALLELISM = 8;
+    /**
+     * Maximum number of redirects followed for a single url.
+     */
+    private static final int MAX_REDIRECTS = 10;
+    /**
+     * Delay between a change and writing it to disk, in milliseconds.
+     */
+    private static final long WRITE_DELAY = 10000;
+    /**
+     * The file to store the cache in.
+     */
+    private static final Path FILE = Path.of("redirects.json");
+
+    /**
+     * The cached redirects, by original url, in access order.
+     */
+    private static final Map<String, Entry> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    /**
+     * Executor used to resolve multiple redirects concurrently.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(PARALLELISM, r -> {
+        Thread thread = new Thread(r, "Redirect resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Whether there are changes that have not been written to disk yet.
+     */
+    private static final AtomicBoolean DIRTY = new AtomicBoolean(false);
+    /**
+     * Executor writing the cache to disk.
+     */
+    private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Redirect cache writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        load();
+        Runtime.getRuntime().addShutdownHook(new Thread(RedirectCache::store, "Redirect cache shutdown"));
+    }
+
+
+    /**
+     * Returns the final url for the given url, which is the url that the given url redirects
+     * to, if it does. The result is taken from the cache, if present.
+     *
+     * @param url The url to resolve
+     * @return The final redirected url
+     */
+    public static String resolve(String url) {
+        long now = System.currentTimeMillis();
+        synchronized(CACHE) {
+            Entry entry = CACHE.get(url);
+            if(entry != null && entry.time + TTL > now)
+                return entry.url;
+        }
+        String finalUrl = follow(url);
+        synchronized(CACHE) {
+            CACHE.put(url, new Entry(finalUrl, now));
+        }
+        if(!DIRTY.getAndSet(true))
+            WRITER.schedule(RedirectCache::store, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        return finalUrl;
+    }
+
+    /**
+     * Resolves the final urls of all the given files concurrently, so that subsequent
+     * calls to {@link File#getFinalUrl()} are answered from the cache.
+     *
+     * @param files The files to resolve the urls of
+     */
+    public static void resolveAll(Collection<File> files) {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for(File file : files)
+            if(file.url != null)
+                futures.add(CompletableFuture.supplyAsync(() -> resolve(file.url), EXECUTOR));
+        for(CompletableFuture<String> future : futures) {
+            try {
+                future.join();
+            } catch(Exception e) {
+                Console.warn("Failed to resolve redirect:", e);
+            }
+        }
+    }
+
+    /**
+     * Follows the redirects of the given url until reaching the final url.
+     *
+     * @param url The url to follow
+     * @return The final url
+     */
+    private static String follow(String url) {
+        for(int i = 0; i < MAX_REDIRECTS && !url.endsWith("forcedownload=1"); i++) {
+            HttpResponse<Void> response = MoodleClient.sendWithoutRedirects(MoodleClient.newRequest(url)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()),
+                    HttpResponse.BodyHandlers.discarding());
+            String newUrl = response.headers().firstValue("Location")
+                    .map(l -> response.uri().resolve(l).toString())
+                    .orElse(null);
+            if(newUrl == null || newUrl.equals(url)) break;
+            url = newUrl;
+        }
+        return url;
+    }
+
+    /**
+     * Loads the cached redirects from disk, if present.
+     */
+    private static void load() {
+        if(!Files.exists(FILE)) return;
+        try {
+            JsonObject json = Json.load(FILE.toString()).asObject();
+            synchronized(CACHE) {
+                for(String url : json.keySet()) {
+                    JsonElement entry = json.getElement(url);
+                    CACHE.put(url, new Entry(entry.get("url").asString(), entry.get("time").asLong()));
+                }
+            }
+        } catch(Exception e) {
+            Console.warn("Failed to load redirect cache:", e);
+        }
+    }
+
+    /**
+     * Writes the non-expired cached redirects to disk, if there are unwritten changes.
+     */
+    private static synchronized void store() {
+        if(!DIRTY.getAndSet(false)) return;
+        long now = System.currentTimeMillis();
+        JsonObject json = new JsonObject();
+        synchronized(CACHE) {
+            CACHE.forEach((url, entry) -> {
+                if(entry.time + TTL > now)
+                    json.put(url, new JsonObject("url", entry.url, "time", entry.time));
+            });
+        }
+        Path temp = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+        try {
+            Json.store(json, temp.toFile());
+            Files.move(temp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(Exception e) {
+            Console.warn("Failed to store redirect cache:", e);
+            if(!DIRTY.getAndSet(true))
+                WRITER.schedule(RedirectCache::store, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * A cached redirect.
+     */
+    private static final class Entry {
+
+        /**
+         * The final url.
+         */
+        final String url;
+        /**
+         * The time when the redirect was resolved.
+         */
+        final long time;
+
+        Entry(String url, long time) {
+            this.url = url;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package de.rwth.discord.moodle;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.rccookie.util.Console;
+
+/**
+ * Utility class throttling all requests to moodle. Requests are limited globally by a
+ * token bucket, allowing {@link #RATE} requests per second with bursts of up to
+ * {@link #BURST} requests, and at most {@link #MAX_CONCURRENT_PER_ENDPOINT} requests to
+ * the same page are running at once.
+ * <p>Additionally, server errors, connection failures and maintenance pages trip a circuit
+ * breaker. While it is open, all requests to moodle fail immediately. After a backoff time,
+ * which grows exponentially with the number of consecutive failures and is randomized,
+ * a single request is let through to probe whether moodle is available again.</p>
+ */
+public final class RequestGovernor {
+
+    private RequestGovernor() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Number of requests allowed per second on average. Can be changed using the system
+     * property {@code moodle.rate}.
+     */
+    private static final double RATE = Double.parseDouble(System.getProperty("moodle.rate", "4"));
+    /**
+     * Maximum number of requests allowed in a burst.
+     */
+    private static final double BURST = Math.max(1, 2 * RATE);
+    /**
+     * Maximum number of concurrent requests to the same endpoint.
+     */
+    private static final int MAX_CONCURRENT_PER_ENDPOINT = 4;
+    /**
+     * Backoff time after the first failure, in milliseconds.
+     */
+    private static final long MIN_BACKOFF = 30 * 1000L;
+    /**
+     * Maximum backoff time, in milliseconds.
+     */
+    private static final long MAX_BACKOFF = 30 * 60 * 1000L;
+
+    /**
+     * Currently available tokens.
+     */
+    private static double tokens = BURST;
+    /**
+     * Time of the last token refill, in nanoseconds.
+     */
+    private static long lastRefill = System.nanoTime();
+
+    /**
+     * Concurrency limits, by endpoint.
+     */
+    private static final Map<String, Semaphore> ENDPOINTS = new ConcurrentHashMap<>();
+
+    /**
+     * Number of consecutive failures, 0 if the circuit is closed.
+     */
+    private static int failures = 0;
+    /**
+     * Time until which the circuit stays open, in milliseconds.
+     */
+    private static long openUntil = 0;
+    /**
+     * Whether a probe request is currently running.
+     */
+    private static boolean probing = false;
+
+    /**
+     * Total number of requests that passed the governor.
+     */
+    private static final AtomicLong REQUESTS = new AtomicLong();
+    /**
+     * Total time requests waited in the queue, in nanoseconds.
+     */
+    private static final AtomicLong TOTAL_WAIT = new AtomicLong();
+    /**
+     * Longest time a request waited in the queue, in nanoseconds.
+     */
+    private static final AtomicLong MAX_WAIT = new AtomicLong();
+
+
+    /**
+     * Waits until a request to the given uri may be sent. Requests to other hosts than
+     * moodle are not throttled. The returned permit must be released once the response
+     * was received.
+     *
+     * @param uri The uri to be requested
+     * @return The permit for the request
+     * @throws IllegalStateException If the circuit breaker is open
+     */
+    public static Permit acquire(URI uri) {
+        if(!MoodleClient.MOODLE_HOST.equals(uri.getHost())) return new Permit(null, false);
+
+        boolean probe = checkCircuit();
+        long start = System.nanoTime();
+        Semaphore endpoint = ENDPOINTS.computeIfAbsent(uri.getPath(), $ -> new Semaphore(MAX_CONCURRENT_PER_ENDPOINT, true));
+        try {
+            endpoint.acquire();
+            try {
+                takeToken();
+            } catch(InterruptedException e) {
+                endpoint.release();
+                throw e;
+            }
+        } catch(InterruptedException e) {
+            if(probe) synchronized(RequestGovernor.class) { probing = false; }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        long wait = System.nanoTime() - start;
+        REQUESTS.incrementAndGet();
+        TOTAL_WAIT.addAndGet(wait);
+        MAX_WAIT.accumulateAndGet(wait, Math::max);
+        return new Permit(endpoint, probe);
+    }
+
+    /**
+     * Returns whether the given page is the moodle maintenance page.
+     *
+     * @param html The page to test
+     * @return Whether the page is the maintenance page
+     */
+    public static boolean isMaintenancePage(String html) {
+        return html.contains("maintenance_message") || html.contains("id=\"page-maintenance");
+    }
+
+    /**
+     * Returns a summary of how long requests waited in the queue.
+     *
+     * @return The queue wait statistics
+     */
+    public static String getWaitStats() {
+        long requests = REQUESTS.get();
+        long avg = requests == 0 ? 0 : TOTAL_WAIT.get() / requests;
+        return String.format("%d requests, avg %d ms, max %d ms", requests,
+                TimeUnit.NANOSECONDS.toMillis(avg), TimeUnit.NANOSECONDS.toMillis(MAX_WAIT.get()));
+    }
+
+    /**
+     * Checks that the circuit is closed, or that a probe request may be sent.
+     *
+     * @return Whether the request is a probe request
+     * @throws IllegalStateException If the circuit is open
+     */
+    private static synchronized boolean checkCircuit() {
+        if(failures == 0) return false;
+        long now = System.currentTimeMillis();
+        if(probing || now < openUntil)
+            throw new IllegalStateException("Moodle is unavailable, retrying in " + Math.max(0, (openUntil - now) / 1000) + "s");
+        probing = true;
+        return true;
+    }
+
+    /**
+     * Takes a token from the bucket, waiting until one is available.
+     */
+    private static void takeToken() throws InterruptedException {
+        while(true) {
+            long waitNanos;
+            synchronized(RequestGovernor.class) {
+                long now = System.nanoTime();
+                tokens = Math.min(BURST, tokens + (now - lastRefill) * RATE / 1e9);
+                lastRefill = now;
+                if(tokens >= 1) {
+                    tokens--;
+                    return;
+                }
+                waitNanos = (long) ((1 - tokens) * 1e9 / RATE);
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Records a successful response. Only a probe request closes an open circuit, as
+     * other requests may have been sent before the circuit was opened.
+     *
+     * @param probe Whether the request was a probe request
+     */
+    private static synchronized void onSuccess(boolean probe) {
+        if(!probe) return;
+        probing = false;
+        if(failures != 0) Console.info("Moodle is available again");
+        failures = 0;
+    }
+
+    /**
+     * Records a request without outcome, so that another probe may be sent if it was a
+     * probe request.
+     *
+     * @param probe Whether the request was a probe request
+     */
+    private static synchronized void onNeutral(boolean probe) {
+        if(probe) probing = false;
+    }
+
+    /**
+     * Records a failure and opens the circuit.
+     *
+     * @param reason The reason of the failure
+     */
+    private static synchronized void onFailure(String reason) {
+        probing = false;
+        failures++;
+        long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 20));
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        openUntil = Math.max(openUntil, System.currentTimeMillis() + backoff);
+        Console.warn(reason + ", pausing requests for", backoff / 1000 + "s");
+    }
+
+
+    /**
+     * Permission to send a single request.
+     */
+    public static final class Permit {
+
+        /**
+         * The concurrency limit of the endpoint, or {@code null} if not throttled.
+         */
+        private final Semaphore endpoint;
+        /**
+         * Whether the request is a probe request.
+         */
+        private final boolean probe;
+        /**
+         * Whether the permit was released already.
+         */
+        private boolean released = false;
+
+        private Permit(Semaphore endpoint, boolean probe) {
+            this.endpoint = endpoint;
+            this.probe = probe;
+        }
+
+        /**
+         * Releases the permit and records the outcome of the request.
+         *
+         * @param statusCode The status code of the response, or -1 if the request failed
+         *                   to connect
+         */
+        public void release(int statusCode) {
+            if(statusCode == -1) release("Could not connect to moodle", true);
+            else if(statusCode >= 500) release("Moodle responded with status " + statusCode, true);
+            else release(null, true);
+        }
+
+        /**
+         * Releases the permit and records that moodle responded with its maintenance
+         * page, which trips the circuit breaker regardless of the status code.
+         */
+        public void releaseMaintenance() {
+            release("Moodle is in maintenance", true);
+        }
+
+        /**
+         * Releases the permit without recording an outcome, for requests that failed for
+         * reasons unrelated to the availability of moodle. The circuit is left as it is,
+         * but another probe may be sent.
+         */
+        public void releaseNeutral() {
+            release(null, false);
+        }
+
+        /**
+         * Releases the permit.
+         *
+         * @param failure The reason why the request failed, or {@code null}
+         * @param outcome Whether the outcome should be recorded
+         */
+        private synchronized void release(String failure, boolean outcome) {
+            if(released || endpoint == null) return;
+            released = true;
+            endpoint.release();
+            if(!outcome) onNeutral(probe);
+            else if(failure != null) onFailure(failure);
+            else onSuccess(probe);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package de.rwth.discord.moodle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.rccookie.util.Console;
+
+/**
+ * Validates freshly fetched file trees of a course before they are compared with and
+ * stored as the last known file tree. While moodle is partially down, pages may be
+ * served without their tables, which would look like all files were removed, and
+ * once moodle is back all of them would be reported as new.
+ * <p>A file tree is considered degraded if a tab (resources, tasks or tests) that
+ * contained files before is now empty, or if the number of files dropped sharply.
+ * If the exact same degraded file tree is fetched {@link #CONFIRMATIONS} times in a
+ * row, it is accepted, as the files were then most likely removed on purpose.</p>
+ */
+public class SnapshotGuard {
+
+    /**
+     * Fraction of the previous file count that may be removed at once.
+     */
+    private static final double MAX_DROP = 0.5;
+    /**
+     * Minimum previous file count for the drop to be checked.
+     */
+    private static final int MIN_FILES = 10;
+    /**
+     * Number of consecutive identical degraded file trees after which they are accepted.
+     */
+    private static final int CONFIRMATIONS = 3;
+
+    /**
+     * The last accepted file tree, or {@code null}.
+     */
+    private File lastAccepted = null;
+    /**
+     * Digest of the last degraded file tree, or {@code null}.
+     */
+    private String suspect = null;
+    /**
+     * Number of consecutive times the suspected file tree was fetched.
+     */
+    private int suspectCount = 0;
+
+
+    /**
+     * Checks whether the given current file tree may replace the stored one. The current
+     * file tree is compared with the last accepted one, or if there is none yet, with the
+     * stored file tree. The stored file tree is not used otherwise, as it still contains
+     * removed files.
+     *
+     * @param current The freshly fetched file tree
+     * @param stored The stored file tree
+     * @return Whether the current file tree is valid
+     */
+    public synchronized boolean accept(File current, File stored) {
+        List<String> problems = check(current, lastAccepted != null ? lastAccepted : stored);
+        if(problems.isEmpty()) {
+            suspect = null;
+            suspectCount = 0;
+            lastAccepted = current;
+            return true;
+        }
+
+        String digest = current.digest();
+        if(digest.equals(suspect)) suspectCount++;
+        else {
+            suspect = digest;
+            suspectCount = 1;
+        }
+        if(suspectCount >= CONFIRMATIONS) {
+            Console.warn("Accepting file tree of", current.name, "after", suspectCount, "identical fetches:", problems);
+            suspect = null;
+            suspectCount = 0;
+            lastAccepted = current;
+            return true;
+        }
+        Console.warn("Degraded file tree for", current.name + ", keeping last known files:", problems);
+        return false;
+    }
+
+    /**
+     * Returns the reasons why the given file tree is considered degraded.
+     *
+     * @param current The freshly fetched file tree
+     * @param lastGood The last known good file tree
+     * @return The problems found, empty if the file tree is valid
+     */
+    private static List<String> check(File current, File lastGood) {
+        List<String> problems = new ArrayList<>();
+
+        for(File oldTab : lastGood) {
+            if(countFiles(oldTab) == 0) continue;
+            File tab = null;
+            for(File t : current) if(oldTab.name != null && oldTab.name.equals(t.name)) tab = t;
+            if(tab == null || countFiles(tab) == 0)
+                problems.add("'" + oldTab.name + "' is empty");
+        }
+
+        int oldCount = countFiles(lastGood), count = countFiles(current);
+        if(oldCount >= MIN_FILES && count < oldCount * (1 - MAX_DROP))
+            problems.add("file count dropped from " + oldCount + " to " + count);
+
+        return problems;
+    }
+
+    /**
+     * Counts the files in the given file tree that are not (empty) folders.
+     *
+     * @param tree The file tree
+     * @return The number of files
+     */
+    private static int countFiles(File tree) {
+        int count = 0;
+        for(File file : tree.getFiles())
+            if(!"folder".equals(file.type)) count++;
+        return count;
+    }
+}
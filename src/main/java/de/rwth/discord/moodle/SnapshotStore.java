@@ -0,0 +1,132 @@
+package de.rwth.discord.moodle;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.rccookie.json.Json;
+import com.github.rccookie.json.JsonObject;
+import com.github.rccookie.util.Console;
+
+/**
+ * Keeps the last known file tree of each course in memory. The stored file trees are
+ * loaded from disk once on creation, changes are written back asynchronously. Multiple
+ * changes within the write delay are written together, and the file is replaced
+ * atomically, so a crash during the write cannot corrupt the stored data.
+ */
+public class SnapshotStore {
+
+    /**
+     * Delay between a change and writing it to disk, in milliseconds.
+     */
+    private static final long WRITE_DELAY = 10000;
+
+    /**
+     * The file to store the snapshots in.
+     */
+    private final Path file;
+    /**
+     * The snapshot of each course, by course id.
+     */
+    private final Map<Integer, File> snapshots = new ConcurrentHashMap<>();
+    /**
+     * Whether there are changes that have not been written to disk yet.
+     */
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    /**
+     * Executor writing the snapshots to disk.
+     */
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Snapshot writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Creates a new snapshot store backed by the given file and loads the stored
+     * snapshots from it, if present.
+     *
+     * @param file The file to store the snapshots in
+     */
+    public SnapshotStore(Path file) {
+        this.file = file;
+        load();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::write, "Snapshot writer shutdown"));
+    }
+
+    /**
+     * Loads the stored snapshots from disk.
+     */
+    private void load() {
+        if(!Files.exists(file)) return;
+        try {
+            JsonObject json = Json.load(file.toString()).asObject();
+            for(String id : json.keySet())
+                snapshots.put(Integer.parseInt(id), json.getElement(id).as(File.class));
+        } catch(Exception e) {
+            Console.warn("Failed to load stored files:", e);
+        }
+    }
+
+    /**
+     * Returns the stored file tree of the given course. If no file tree is stored
+     * for that course yet, an appropriate empty file tree stump will be returned.
+     *
+     * @param course The course to get the file tree for
+     * @return The stored file tree of the course
+     */
+    public File get(Course course) {
+        File files = snapshots.get(course.id);
+        if(files != null) return files;
+
+        files = new File();
+        files.name = course.name;
+        files.description = course.id+"";
+        files.type = "folder";
+        files.url = course.url;
+        return files;
+    }
+
+    /**
+     * Sets the stored file tree of the given course. The file tree will be written
+     * to disk asynchronously, it must not be modified afterwards.
+     *
+     * @param course The course to set the file tree for
+     * @param files The file tree to store
+     */
+    public void put(Course course, File files) {
+        snapshots.put(course.id, files);
+        if(!dirty.getAndSet(true))
+            writer.schedule(this::write, WRITE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all snapshots to disk, if there are unwritten changes. The snapshots
+     * are first written to a temporary file, which then replaces the actual file.
+     */
+    private synchronized void write() {
+        if(!dirty.getAndSet(false)) return;
+
+        JsonObject json = new JsonObject();
+        snapshots.forEach((id, files) -> json.put(id+"", files));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Json.store(json, temp.toFile());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Console.mapDebug("Stored files of", snapshots.size(), "courses");
+        } catch(Exception e) {
+            Console.error("Failed to store files");
+            Console.error(e);
+            if(!dirty.getAndSet(true))
+                writer.schedule(this::write, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+}